@@ -3,21 +3,26 @@ import javax.swing.border.*;
 import javax.swing.table.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.*;
 import java.util.*;
 import java.util.List;
+import java.util.function.Predicate;
 
 public class EcommerceCartEnhanced extends JFrame {
     // Storage files
     private final File cartFile = new File("cart_data.ser");
     private final File ordersFile = new File("orders.ser");
+    private final File catalogFile = new File("products.csv");
 
     // Data
-    private final List<Product> products = new ArrayList<>();
+    private final List<Product> products = new ArrayList<>(); // catalog order, for the table
+    private final Map<String, Product> productsById = new HashMap<>();
+    private String catalogInfo = "";
     private Cart cart = new Cart();
 
     // UI
-    private DefaultTableModel productModel;
+    private ProductTableModel productModel;
     private DefaultTableModel cartModel;
     private JTable productTable;
     private JTable cartTable;
@@ -53,16 +58,122 @@ public class EcommerceCartEnhanced extends JFrame {
         refreshCartTable();
     }
 
+    // ---------- Product catalog ----------
+    // products.csv (id,name,price; a header line and quoted names are fine) is read one line
+    // at a time, never whole, into `products` and the ID index. Without the file, or when
+    // it can't be read through, the app starts with a small sample catalog.
     private void loadProducts() {
-        // Preload sample catalog. In real project you can load from file.
-        products.add(new Product("P001", "Wireless Mouse", 599.0));
-        products.add(new Product("P002", "Mechanical Keyboard", 1799.0));
-        products.add(new Product("P003", "USB-C Charger 65W", 1299.0));
-        products.add(new Product("P004", "Wireless Headphones", 2499.0));
-        products.add(new Product("P005", "Laptop Stand", 899.0));
-        products.add(new Product("P006", "External SSD 1TB", 5999.0));
+        if (!catalogFile.exists()) {
+            loadSampleProducts();
+            catalogInfo = products.size() + " sample products";
+            return;
+        }
+        long start = System.nanoTime();
+        int skipped;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), StandardCharsets.UTF_8), 1 << 16)) {
+            skipped = readProducts(in, this::addProduct);
+        } catch (IOException e) {
+            products.clear();
+            productsById.clear();
+            loadSampleProducts();
+            catalogInfo = "could not read " + catalogFile.getName() + ", " + products.size() + " sample products";
+            status(catalogInfo);
+            JOptionPane.showMessageDialog(null, "Failed to read " + catalogFile.getName() + ": " + e.getMessage() + "\nUsing the sample catalog instead.");
+            return;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        catalogInfo = String.format("%,d products loaded in %d ms, about %d MB", products.size(), ms, retainedBytes(products) >> 20)
+                + (skipped > 0 ? ", " + skipped + " bad or duplicate lines skipped" : "");
+        status(catalogInfo);
+    }
+
+    private void loadSampleProducts() {
+        addProduct(new Product("P001", "Wireless Mouse", 599.0));
+        addProduct(new Product("P002", "Mechanical Keyboard", 1799.0));
+        addProduct(new Product("P003", "USB-C Charger 65W", 1299.0));
+        addProduct(new Product("P004", "Wireless Headphones", 2499.0));
+        addProduct(new Product("P005", "Laptop Stand", 899.0));
+        addProduct(new Product("P006", "External SSD 1TB", 5999.0));
+    }
+
+    // false if the ID is taken
+    private boolean addProduct(Product p) {
+        if (productsById.putIfAbsent(p.id, p) != null) return false;
+        products.add(p);
+        return true;
+    }
+
+    // Hands each product line to `add`; returns how many lines were bad or refused. A first
+    // line without a price is taken for a header.
+    static int readProducts(BufferedReader in, Predicate<Product> add) throws IOException {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        int skipped = 0;
+        boolean first = true;
+        for (String line; (line = in.readLine()) != null; ) {
+            if (first && line.startsWith("\uFEFF")) line = line.substring(1);
+            if (line.trim().isEmpty()) continue;
+            Product p = parseProduct(line, fields, field);
+            if (p == null ? !first : !add.test(p)) skipped++;
+            first = false;
+        }
+        return skipped;
+    }
+
+    // null unless the line has an ID, a name and a price that is a non-negative number
+    private static Product parseProduct(String line, List<String> fields, StringBuilder field) {
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') { field.append('"'); i++; }
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (fields.size() < 3) return null;
+        String id = fields.get(0).trim(), name = fields.get(1).trim();
+        if (id.isEmpty() || name.isEmpty()) return null;
+        try {
+            double price = Double.parseDouble(fields.get(2).trim());
+            return price >= 0 ? new Product(id, name, price) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // What the catalog keeps on the heap, added up from the object layouts of a 64-bit JVM
+    // with compressed references: each product, its two strings, its slot in `products`
+    // and its entry in the ID index. A heap reading would count whatever garbage the load
+    // left behind, or miss what a collection midway had already moved.
+    static long retainedBytes(List<Product> products) {
+        int n = products.size();
+        long table = Integer.highestOneBit(Math.max(1, (int) (n / 0.75f)) * 2 - 1); // HashMap capacity
+        long bytes = align(16 + 4L * n) + align(16 + 4 * table);
+        for (Product p : products) {
+            bytes += 32 + stringBytes(p.id) + stringBytes(p.name) + 32; // product, strings, map entry
+        }
+        return bytes;
     }
 
+    private static long stringBytes(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) latin1 = s.charAt(i) <= 0xFF;
+        return 24 + align(16 + (long) s.length() * (latin1 ? 1 : 2));
+    }
+
+    private static long align(long bytes) { return (bytes + 7) & ~7L; }
+
     private void initUI() {
         getContentPane().setBackground(new Color(240, 247, 255));
         setLayout(new BorderLayout(10, 10));
@@ -74,7 +185,7 @@ public class EcommerceCartEnhanced extends JFrame {
 
         JPanel leftTop = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
         leftTop.setBackground(new Color(240, 247, 255));
-        leftTop.add(new JLabel("Products"));
+        leftTop.add(new JLabel("Products (" + catalogInfo + ")"));
         top.add(leftTop, BorderLayout.WEST);
 
         JPanel rightTop = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 0));
@@ -129,9 +240,7 @@ public class EcommerceCartEnhanced extends JFrame {
         JPanel p = new JPanel(new BorderLayout(8, 8));
         p.setBorder(new EmptyBorder(10, 10, 10, 6));
         p.setBackground(new Color(240, 247, 255));
-        productModel = new DefaultTableModel(new String[]{"ID", "Name", "Price (₹)", "Action"}, 0) {
-            public boolean isCellEditable(int r, int c) { return c == 3; }
-        };
+        productModel = new ProductTableModel();
         productTable = new JTable(productModel);
         productTable.getColumn("Action").setCellRenderer(new ButtonRenderer());
         productTable.getColumn("Action").setCellEditor(new ProductButtonEditor((id)-> onAddToCart(id)));
@@ -196,10 +305,7 @@ public class EcommerceCartEnhanced extends JFrame {
     }
 
     private void populateProductTable(List<Product> list) {
-        productModel.setRowCount(0);
-        for (Product p : list) {
-            productModel.addRow(new Object[]{p.id, p.name, p.price, "Add"});
-        }
+        productModel.setProducts(list);
     }
 
     private void onAddToCart(String id) {
@@ -224,8 +330,7 @@ public class EcommerceCartEnhanced extends JFrame {
     }
 
     private Product findProduct(String id) {
-        for (Product p : products) if (p.id.equals(id)) return p;
-        return null;
+        return productsById.get(id);
     }
 
     // ---------- Cart logic ----------
@@ -482,6 +587,32 @@ public class EcommerceCartEnhanced extends JFrame {
         }
     }
 
+    // Shows a list of products as is, without copying them into table rows.
+    static class ProductTableModel extends AbstractTableModel {
+        private final String[] cols = {"ID", "Name", "Price (₹)", "Action"};
+        private List<Product> rows = Collections.emptyList();
+
+        void setProducts(List<Product> list) {
+            rows = list;
+            fireTableDataChanged();
+        }
+
+        public int getRowCount() { return rows.size(); }
+        public int getColumnCount() { return cols.length; }
+        public String getColumnName(int c) { return cols[c]; }
+        public boolean isCellEditable(int r, int c) { return c == 3; }
+
+        public Object getValueAt(int r, int c) {
+            Product p = rows.get(r);
+            switch (c) {
+                case 0: return p.id;
+                case 1: return p.name;
+                case 2: return p.price;
+                default: return "Add";
+            }
+        }
+    }
+
     // ---------- Table button renderers & editors ----------
     class ButtonRenderer extends JButton implements TableCellRenderer {
         public ButtonRenderer() { setOpaque(true); setBackground(new Color(70,130,180)); setForeground(Color.WHITE); setBorder(new EmptyBorder(6,10,6,10)); }
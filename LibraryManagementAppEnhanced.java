@@ -1,25 +1,118 @@
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.text.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class LibraryManagementAppEnhanced extends JFrame {
     // storage
     private final File storageFile = new File("library_data.ser");
-    private BookTableModel tableModel = new BookTableModel();
+    private final LibraryLog log = new LibraryLog(storageFile);
+    private String snapshotName = storageFile.getName();
+    private BookTableModel tableModel = new BookTableModel(Boolean.getBoolean("library.lean"));
+    private final Circulation circulation = new Circulation(tableModel, log);
+    private final BookSearch search = new BookSearch(tableModel, circulation.catalogReadLock());
+    private final javax.swing.Timer searchDelay = new javax.swing.Timer(200, e -> performSearch());
+    private boolean snapshotting, importing;
+    private static final int DUE_SOON_DAYS = 3;
 
     // UI components
     private JTable table;
     private JTextField searchField;
+    private JTextField scanField;
     private JLabel statusLabel;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--convert")) {
+            try {
+                convert(new File(args.length > 1 ? args[1] : "library_data.ser"));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                new LibraryService(new File("library_data.ser"), args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--loadtest")) {
+            try {
+                LoadTest.run(args.length > 1 ? args[1] : "http://localhost:8080", args.length > 2 ? Integer.parseInt(args[2]) : 1000,
+                        args.length > 3 ? Integer.parseInt(args[3]) : 10);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--stress")) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                StressTest.run(args.length > 1 ? Integer.parseInt(args[1]) : 8, args.length > 2 ? Integer.parseInt(args[2]) : 5,
+                        args.length > 3 ? Integer.parseInt(args[3]) : 10000);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 new LibraryManagementAppEnhanced().setVisible(true);
@@ -44,6 +137,9 @@ public class LibraryManagementAppEnhanced extends JFrame {
 
         initUI();
         loadData();
+        circulation.afterDrain = this::snapshotIfDue;
+        circulation.dueDates.listener = loans -> status("⏰ " + loans.size() + (loans.size() == 1 ? " loan has" : " loans have")
+                + " just become overdue — click Overdue to list them");
     }
 
     private void initUI() {
@@ -61,7 +157,8 @@ public class LibraryManagementAppEnhanced extends JFrame {
         JButton editBtn = styledButton("✏️ Edit Book");
         JButton delBtn = styledButton("🗑 Delete Book");
         JButton borrowBtn = styledButton("📥 Borrow / Return");
-        leftTop.add(addBtn); leftTop.add(editBtn); leftTop.add(delBtn); leftTop.add(borrowBtn);
+        JButton overdueBtn = styledButton("⏰ Overdue");
+        leftTop.add(addBtn); leftTop.add(editBtn); leftTop.add(delBtn); leftTop.add(borrowBtn); leftTop.add(overdueBtn);
 
         JPanel rightTop = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 0));
         rightTop.setBackground(new Color(245, 248, 252));
@@ -69,9 +166,10 @@ public class LibraryManagementAppEnhanced extends JFrame {
         searchField.setToolTipText("Search by Title, Author or ISBN");
         JButton searchBtn = styledButton("🔍 Search");
         JButton showAllBtn = styledButton("Show All");
+        JButton importBtn = styledButton("Import CSV");
         JButton exportBtn = styledButton("Export CSV");
         JButton saveBtn = styledButton("Save");
-        rightTop.add(searchField); rightTop.add(searchBtn); rightTop.add(showAllBtn); rightTop.add(exportBtn); rightTop.add(saveBtn);
+        rightTop.add(searchField); rightTop.add(searchBtn); rightTop.add(showAllBtn); rightTop.add(importBtn); rightTop.add(exportBtn); rightTop.add(saveBtn);
 
         top.add(leftTop, BorderLayout.WEST);
         top.add(rightTop, BorderLayout.EAST);
@@ -83,7 +181,7 @@ public class LibraryManagementAppEnhanced extends JFrame {
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         table.setFillsViewportHeight(true);
         table.setRowHeight(26);
-        table.setAutoCreateRowSorter(true);
+        table.setRowSorter(new BookSorter(tableModel));
         JScrollPane sc = new JScrollPane(table);
         sc.setBorder(new EmptyBorder(0, 10, 0, 10));
         add(sc, BorderLayout.CENTER);
@@ -94,6 +192,13 @@ public class LibraryManagementAppEnhanced extends JFrame {
         statusBar.setBackground(new Color(245, 248, 252));
         statusLabel = new JLabel("Ready");
         statusBar.add(statusLabel, BorderLayout.WEST);
+        JPanel scanPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        scanPanel.setBackground(new Color(245, 248, 252));
+        scanField = new JTextField(16);
+        scanField.setToolTipText("Type or scan an ISBN and press Enter");
+        scanPanel.add(new JLabel("📷 ISBN lookup:"));
+        scanPanel.add(scanField);
+        statusBar.add(scanPanel, BorderLayout.EAST);
         add(statusBar, BorderLayout.SOUTH);
 
         // Button actions
@@ -101,17 +206,23 @@ public class LibraryManagementAppEnhanced extends JFrame {
         editBtn.addActionListener(e -> editSelectedBook());
         delBtn.addActionListener(e -> deleteSelectedBook());
         borrowBtn.addActionListener(e -> borrowOrReturnSelected());
+        overdueBtn.addActionListener(e -> showOverdue());
         searchBtn.addActionListener(e -> performSearch());
-        showAllBtn.addActionListener(e -> { tableModel.resetFilter(); status("Showing all books"); });
+        showAllBtn.addActionListener(e -> { search.cancel(); tableModel.resetFilter(); status("Showing all books"); });
+        importBtn.addActionListener(e -> importCSV());
         exportBtn.addActionListener(e -> exportCSV());
-        saveBtn.addActionListener(e -> {
-            saveData();
-            status("Saved to " + storageFile.getName());
-            JOptionPane.showMessageDialog(this, "Saved successfully.");
-        });
+        saveBtn.addActionListener(e -> saveSnapshot(true));
 
-        // Enter key in search
+        // Enter key in search; typing searches once the user pauses
         searchField.addActionListener(e -> performSearch());
+        searchDelay.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        // barcode readers type the code followed by Enter
+        scanField.addActionListener(e -> lookupIsbn());
 
         // double-click row -> edit
         table.addMouseListener(new MouseAdapter() {
@@ -133,11 +244,16 @@ public class LibraryManagementAppEnhanced extends JFrame {
 
     // ---------- Book Operations ----------
     private void addBookDialog() {
-        BookDialog.Result res = BookDialog.showDialog(this, null, tableModel.getAllISBNs());
+        BookDialog.Result res = BookDialog.showDialog(this, null, isbn -> tableModel.findByIsbn(isbn) != null);
         if (res == null) return;
         Book b = new Book(res.title, res.author, res.isbn);
-        tableModel.addBook(b);
-        saveData();
+        Lock lock = circulation.lockCatalog();
+        try {
+            tableModel.addBook(b);
+            saveData(l -> l.add(b));
+        } finally {
+            lock.unlock();
+        }
         status("Book added: " + b.title);
     }
 
@@ -146,14 +262,23 @@ public class LibraryManagementAppEnhanced extends JFrame {
         if (r == -1) { JOptionPane.showMessageDialog(this, "Please select a book to edit."); return; }
         int modelRow = table.convertRowIndexToModel(r);
         Book existing = tableModel.getBookAt(modelRow);
-        BookDialog.Result res = BookDialog.showDialog(this, existing, tableModel.getAllISBNsExcept(existing.isbn));
+        BookDialog.Result res = BookDialog.showDialog(this, existing, isbn -> {
+            Book other = tableModel.findByIsbn(isbn);
+            return other != null && other.id != existing.id;
+        });
         if (res == null) return;
-        existing.title = res.title;
-        existing.author = res.author;
-        existing.isbn = res.isbn;
-        tableModel.fireTableRowsUpdated(modelRow, modelRow);
-        saveData();
-        status("Book updated: " + existing.title);
+        String oldIsbn = existing.isbn;
+        Book updated;
+        Lock lock = circulation.lockCatalog();
+        try {
+            updated = tableModel.updateBook(modelRow, res.title, res.author, res.isbn);
+            saveData(l -> l.update(oldIsbn, updated));
+            circulation.track(oldIsbn);
+            circulation.track(updated.isbn);
+        } finally {
+            lock.unlock();
+        }
+        status("Book updated: " + updated.title);
     }
 
     private void deleteSelectedBook() {
@@ -163,8 +288,14 @@ public class LibraryManagementAppEnhanced extends JFrame {
         Book b = tableModel.getBookAt(modelRow);
         int c = JOptionPane.showConfirmDialog(this, "Delete \"" + b.title + "\"? This cannot be undone.", "Confirm Delete", JOptionPane.YES_NO_OPTION);
         if (c == JOptionPane.YES_OPTION) {
-            tableModel.removeBook(modelRow);
-            saveData();
+            Lock lock = circulation.lockCatalog();
+            try {
+                tableModel.removeBook(modelRow);
+                saveData(l -> l.delete(b));
+                circulation.track(b.isbn);
+            } finally {
+                lock.unlock();
+            }
             status("Book deleted: " + b.title);
         }
     }
@@ -172,94 +303,320 @@ public class LibraryManagementAppEnhanced extends JFrame {
     private void borrowOrReturnSelected() {
         int r = table.getSelectedRow();
         if (r == -1) { JOptionPane.showMessageDialog(this, "Please select a book to borrow/return."); return; }
+        circulation.drain();
         int modelRow = table.convertRowIndexToModel(r);
         Book b = tableModel.getBookAt(modelRow);
-        if (b.isBorrowed()) {
-            int c = JOptionPane.showConfirmDialog(this, "Return \"" + b.title + "\" borrowed by " + b.borrower + "?", "Return Book", JOptionPane.YES_NO_OPTION);
-            if (c == JOptionPane.YES_OPTION) {
-                b.borrower = null; b.borrowedOn = null;
-                tableModel.fireTableRowsUpdated(modelRow, modelRow);
-                saveData();
-                status("Book returned: " + b.title);
-            }
-        } else {
-            String name = JOptionPane.showInputDialog(this, "Enter borrower name:");
-            if (name == null) return;
-            name = name.trim();
-            if (name.isEmpty()) { JOptionPane.showMessageDialog(this, "Borrower name cannot be empty."); return; }
-            b.borrower = name;
-            b.borrowedOn = new Date();
-            tableModel.fireTableRowsUpdated(modelRow, modelRow);
-            saveData();
-            status("Book borrowed: " + b.title + " by " + name);
+        try {
+            if (b.isBorrowed()) {
+                int c = JOptionPane.showConfirmDialog(this, "Return \"" + b.title + "\" borrowed by " + b.borrower + "?", "Return Book", JOptionPane.YES_NO_OPTION);
+                if (c != JOptionPane.YES_OPTION) return;
+                Circulation.Result res = circulation.giveBack(b.isbn);
+                circulation.drain();
+                if (res == Circulation.Result.RETURNED) status("Book returned: " + b.title);
+                else JOptionPane.showMessageDialog(this, "\"" + b.title + "\" was already returned at another desk.");
+            } else {
+                String name = JOptionPane.showInputDialog(this, "Enter borrower name:");
+                if (name == null) return;
+                name = name.trim();
+                if (name.isEmpty()) { JOptionPane.showMessageDialog(this, "Borrower name cannot be empty."); return; }
+                Circulation.Result res = circulation.borrow(b.isbn, name, System.currentTimeMillis());
+                circulation.drain();
+                if (res == Circulation.Result.BORROWED) {
+                    status("Book borrowed: " + b.title + " by " + name);
+                } else if (res == Circulation.Result.LIMIT_REACHED) {
+                    StringBuilder held = new StringBuilder();
+                    for (Circulation.Loan loan : circulation.loansOf(name)) {
+                        Book h = tableModel.findByIsbn(loan.isbn);
+                        held.append("\n  • ").append(h == null ? loan.isbn : h.title);
+                    }
+                    JOptionPane.showMessageDialog(this, name + " already has " + Circulation.LOAN_LIMIT
+                            + " books out, the most allowed:" + held);
+                } else {
+                    Circulation.Loan loan = circulation.loanOf(b.isbn);
+                    JOptionPane.showMessageDialog(this, "\"" + b.title + "\" was just lent at another desk"
+                            + (loan == null ? "." : " to " + loan.borrower + "."));
+                }
+            }
+            snapshotIfDue();
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Failed to save data: " + e.getMessage());
         }
     }
 
+    // Lists the overdue books, longest overdue first, and counts those due in the next days.
+    private void showOverdue() {
+        search.cancel();
+        circulation.drain();
+        long now = System.currentTimeMillis();
+        List<Circulation.Loan> late = circulation.dueDates.overdue(now);
+        int soon = circulation.dueDates.dueWithin(now, TimeUnit.DAYS.toMillis(DUE_SOON_DAYS)).size();
+        Rows rows = new Rows(late.size());
+        for (Circulation.Loan loan : late) {
+            int row = tableModel.rowOf(loan.isbn);
+            if (row >= 0) rows.add(row);
+        }
+        tableModel.showResults(tableModel.newView(), rows, true);
+        status(late.size() + " overdue, " + soon + " more due in the next " + DUE_SOON_DAYS + " days");
+    }
+
     // ---------- Search ----------
+    // Runs in the background (see BookSearch); results stream into the table as found.
     private void performSearch() {
+        searchDelay.stop();
         String q = searchField.getText().trim();
-        if (q.isEmpty()) { JOptionPane.showMessageDialog(this, "Enter a search value (Title, Author or ISBN)."); return; }
-        tableModel.filter(q);
-        if (tableModel.getRowCount() == 0) {
-            JOptionPane.showMessageDialog(this, "No books found for: \"" + q + "\"", "Search Result", JOptionPane.INFORMATION_MESSAGE);
+        if (q.isEmpty()) { search.cancel(); tableModel.resetFilter(); status("Showing all books"); return; }
+        status("Searching for: " + q + " …");
+        search.start(q, (done, ms) -> {
+            int n = tableModel.getRowCount();
+            if (!done) status("Searching for: " + q + " … " + n + " found so far");
+            else if (n == 0) status("No books found for: " + q);
+            else status("Showing " + n + " search results for: " + q + " (" + ms + " ms)");
+        });
+    }
+
+    // Selects the book with the typed or scanned ISBN, then clears the field for the next scan.
+    private void lookupIsbn() {
+        String isbn = scanField.getText().trim();
+        scanField.setText("");
+        if (isbn.isEmpty()) return;
+        Book b = tableModel.findByIsbn(isbn);
+        if (b == null) {
+            Toolkit.getDefaultToolkit().beep();
+            status("No book with ISBN " + isbn);
+            return;
+        }
+        int modelRow = tableModel.indexOf(b);
+        if (modelRow == -1) {
+            // filtered out of the current search results
+            search.cancel();
             tableModel.resetFilter();
-            status("Search returned no results for: " + q);
-        } else {
-            status("Showing search results for: " + q);
+            modelRow = tableModel.indexOf(b);
         }
+        int viewRow = table.convertRowIndexToView(modelRow);
+        table.setRowSelectionInterval(viewRow, viewRow);
+        table.scrollRectToVisible(table.getCellRect(viewRow, 0, true));
+        status("Found: " + b.title + " (" + (b.isBorrowed() ? "borrowed by " + b.borrower : "available") + ")");
     }
 
     // ---------- Persistence ----------
-    private void saveData() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(storageFile))) {
-            oos.writeObject(tableModel.getAllBooks());
+    // Each change costs one small log append; the full catalog is only written by the
+    // background snapshot once the log has grown enough.
+    private void saveData(LibraryLog.Change change) {
+        try {
+            change.writeTo(log);
+            snapshotIfDue();
         } catch (Exception e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Failed to save data: " + e.getMessage());
         }
     }
 
-    @SuppressWarnings("unchecked")
+    private void snapshotIfDue() {
+        if (log.needsSnapshot()) saveSnapshot(false);
+    }
+
+    // Starts a new log and writes the catalog as it stands to the snapshot off the EDT.
+    private void saveSnapshot(boolean confirm) {
+        if (snapshotting) return;
+        List<Book> books;
+        long generation;
+        // desks wait while the log rotates, so every loan is either in the snapshot or
+        // in the new log
+        Lock lock = circulation.lockCatalog();
+        try {
+            generation = log.rotate();
+            books = tableModel.getAllBooks();
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Failed to save data: " + e.getMessage());
+            return;
+        } finally {
+            lock.unlock();
+        }
+        snapshotting = true;
+        new SwingWorker<Void, Void>() {
+            protected Void doInBackground() throws Exception {
+                log.writeSnapshot(books, generation);
+                return null;
+            }
+
+            protected void done() {
+                snapshotting = false;
+                try {
+                    get();
+                    snapshotName = log.snapshotFile(generation).getName();
+                    status("Saved to " + snapshotName);
+                    if (confirm) JOptionPane.showMessageDialog(LibraryManagementAppEnhanced.this, "Saved successfully.");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    status("Snapshot failed, changes are still in the log (error: " + e.getMessage() + ")");
+                }
+            }
+        }.execute();
+    }
+
     private void loadData() {
-        if (!storageFile.exists()) { status("No saved data — start by adding books."); return; }
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(storageFile))) {
-            Object o = in.readObject();
-            if (o instanceof List) {
-                List<Book> list = (List<Book>) o;
-                tableModel.setBooks(list);
-                status("Loaded " + list.size() + " books from " + storageFile.getName());
-            } else {
-                status("Saved data corrupted or incompatible — starting empty.");
+        try {
+            long start = System.nanoTime();
+            LibraryLog.Loaded loaded;
+            Lock lock = circulation.lockCatalog();
+            try {
+                loaded = log.load(tableModel);
+                circulation.reset();
+            } finally {
+                lock.unlock();
             }
+            if (loaded == null) { status("No saved data — start by adding books."); return; }
+            tableModel.resetFilter();
+            snapshotName = loaded.source.getName();
+            status("Loaded " + loaded.books + " books from " + snapshotName
+                    + (loaded.replayed > 0 ? " + " + loaded.replayed + " logged changes" : "")
+                    + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            // a catalog still in the old serialized form is rewritten in the binary one
+            if (loaded.source.equals(storageFile)) saveSnapshot(false);
         } catch (Exception e) {
             e.printStackTrace();
+            tableModel.setBooks(Collections.emptyList());
             status("Failed to load data — starting empty (error: " + e.getMessage() + ")");
         }
     }
 
-    // ---------- Export CSV ----------
+    // ---------- Import / Export CSV ----------
+    // Books are parsed on every core off the EDT and added a batch at a time; rows whose
+    // ISBN the catalog already has are skipped, so an interrupted import can just be rerun.
+    private void importCSV() {
+        if (importing) return;
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File in = chooser.getSelectedFile();
+        ProgressMonitor monitor = new ProgressMonitor(this, "Importing " + in.getName(), null, 0, 100);
+        AtomicBoolean cancel = new AtomicBoolean();
+        importing = true;
+        long start = System.nanoTime();
+        SwingWorker<CsvImport.Report, Void> worker = new SwingWorker<CsvImport.Report, Void>() {
+            protected CsvImport.Report doInBackground() throws Exception {
+                PersistenceEvent event = PersistenceEvent.start("import");
+                CsvImport.Report report;
+                try (Operation.Timing timing = Operation.IMPORT.start()) {
+                    report = CsvImport.run(in, LibraryManagementAppEnhanced.this::addImported, this::setProgress, cancel::get);
+                    timing.ok();
+                }
+                event.finish(in, report.added, in.length());
+                return report;
+            }
+
+            protected void done() {
+                importing = false;
+                monitor.close();
+                try {
+                    CsvImport.Report r = get();
+                    long ms = (System.nanoTime() - start) / 1000000;
+                    String summary = "Imported " + r.added + " of " + r.rows + " rows from " + in.getName() + " in " + ms + " ms ("
+                            + r.duplicates + " duplicate ISBNs skipped, " + r.rejected + " rejected"
+                            + (r.unchecked > 0 ? ", " + r.unchecked + " with unchecked ISBNs" : "") + ")" + (r.cancelled ? ", cancelled" : "");
+                    status(summary);
+                    if (r.added > 0) saveSnapshot(false);
+                    if (!r.problems.isEmpty()) {
+                        JOptionPane.showMessageDialog(LibraryManagementAppEnhanced.this, summary + "\n\n" + String.join("\n", r.problems)
+                                + (r.rejected + r.unchecked > r.problems.size() ? "\n…" : ""), "Import", JOptionPane.WARNING_MESSAGE);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(LibraryManagementAppEnhanced.this, "Import stopped: " + cause.getMessage());
+                    status("Import stopped; books added before the error were kept");
+                }
+            }
+        };
+        worker.addPropertyChangeListener(e -> {
+            if (!"progress".equals(e.getPropertyName())) return;
+            monitor.setProgress((Integer) e.getNewValue());
+            if (monitor.isCanceled()) cancel.set(true);
+        });
+        worker.execute();
+    }
+
+    // Adds one import batch on the EDT, logged with a single fsync; returns how many were new.
+    private int addImported(List<Book> batch) throws Exception {
+        FutureTask<Integer> task = new FutureTask<>(() -> {
+            Lock lock = circulation.lockCatalog();
+            try {
+                List<Book> added = tableModel.addBooks(batch);
+                log.addAll(added);
+                return added.size();
+            } finally {
+                lock.unlock();
+            }
+        });
+        SwingUtilities.invokeLater(task);
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
     private void exportCSV() {
         JFileChooser chooser = new JFileChooser();
         chooser.setSelectedFile(new File("library_export.csv"));
         int res = chooser.showSaveDialog(this);
         if (res != JFileChooser.APPROVE_OPTION) return;
         File out = chooser.getSelectedFile();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(out))) {
-            pw.println("Title,Author,ISBN,Status,Borrower,BorrowedOn");
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-            for (Book b : tableModel.getAllBooks()) {
-                String status = b.isBorrowed() ? "Borrowed" : "Available";
-                String borrower = b.borrower == null ? "" : b.borrower.replace(",", " ");
-                String date = b.borrowedOn == null ? "" : df.format(b.borrowedOn);
-                pw.printf("\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\"%n",
-                        escapeCsv(b.title), escapeCsv(b.author), escapeCsv(b.isbn), status, escapeCsv(borrower), date);
+        List<Book> books = tableModel.getAllBooks();
+        ProgressMonitor monitor = new ProgressMonitor(this, "Exporting to " + out.getName(), null, 0, 100);
+        AtomicBoolean cancel = new AtomicBoolean();
+        SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
+            protected Boolean doInBackground() throws IOException {
+                PersistenceEvent event = PersistenceEvent.start("export");
+                try (Operation.Timing timing = Operation.EXPORT.start()) {
+                    boolean complete = write();
+                    timing.ok();
+                    if (complete) event.finish(out, books.size(), out.length());
+                    return complete;
+                }
             }
-            JOptionPane.showMessageDialog(this, "Exported to " + out.getAbsolutePath());
-            status("Exported CSV: " + out.getName());
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Failed to export CSV: " + ex.getMessage());
-        }
+
+            private boolean write() throws IOException {
+                String nl = System.lineSeparator();
+                SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+                StringBuilder line = new StringBuilder(256);
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16)) {
+                    w.write("Title,Author,ISBN,Status,Borrower,BorrowedOn" + nl);
+                    for (int i = 0; i < books.size(); i++) {
+                        if (cancel.get()) return false;
+                        Book b = books.get(i);
+                        line.setLength(0);
+                        line.append('"').append(escapeCsv(b.title)).append("\",\"").append(escapeCsv(b.author))
+                                .append("\",\"").append(escapeCsv(b.isbn)).append("\",\"").append(b.isBorrowed() ? "Borrowed" : "Available")
+                                .append("\",\"").append(b.borrower == null ? "" : escapeCsv(b.borrower.replace(",", " ")))
+                                .append("\",\"").append(b.borrowedOn == null ? "" : df.format(b.borrowedOn)).append('"').append(nl);
+                        w.append(line);
+                        if ((i & 0xFFFF) == 0) setProgress((int) (100L * i / books.size()));
+                    }
+                }
+                return true;
+            }
+
+            protected void done() {
+                monitor.close();
+                try {
+                    if (!get()) { status("Export cancelled; " + out.getName() + " is incomplete"); return; }
+                    JOptionPane.showMessageDialog(LibraryManagementAppEnhanced.this, "Exported to " + out.getAbsolutePath());
+                    status("Exported CSV: " + out.getName());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(LibraryManagementAppEnhanced.this, "Failed to export CSV: " + cause.getMessage());
+                }
+            }
+        };
+        worker.addPropertyChangeListener(e -> {
+            if (!"progress".equals(e.getPropertyName())) return;
+            monitor.setProgress((Integer) e.getNewValue());
+            if (monitor.isCanceled()) cancel.set(true);
+        });
+        worker.execute();
     }
 
     private String escapeCsv(String s) {
@@ -271,10 +628,37 @@ public class LibraryManagementAppEnhanced extends JFrame {
         statusLabel.setText(s);
     }
 
+    // Rewrites a serialized catalog (and its change log) as a binary snapshot and prints how
+    // long each takes to load.
+    private static void convert(File legacy) throws Exception {
+        if (!legacy.exists()) {
+            System.out.println("Nothing to convert: " + legacy + " not found");
+            return;
+        }
+        long bytes = legacy.length(), start = System.nanoTime();
+        int books = LibraryLog.readLegacy(legacy).size();
+        long serMs = (System.nanoTime() - start) / 1000000;
+        LibraryLog log = new LibraryLog(legacy);
+        BookTableModel model = new BookTableModel(false);
+        log.load(model);
+        long generation = log.rotate();
+        log.writeSnapshot(model.getAllBooks(), generation);
+        log.close();
+        File bin = log.snapshotFile(generation);
+        start = System.nanoTime();
+        List<Book> mapped = new ArrayList<>(CatalogFile.open(bin));
+        long binMs = (System.nanoTime() - start) / 1000000;
+        System.out.printf("%s: %,d books, %,d bytes, loaded in %d ms%n", legacy.getName(), books, bytes, serMs);
+        System.out.printf("%s: %,d books, %,d bytes, loaded in %d ms%n", bin.getName(), mapped.size(), bin.length(), binMs);
+    }
+
     // ---------- Data Model ----------
     static class Book implements Serializable {
+        // the value the original class was computed to, so existing library_data.ser files still load
+        private static final long serialVersionUID = 543006492235246045L;
         String title, author, isbn;
         String borrower; Date borrowedOn;
+        private transient int id; // row on the model's shelf
 
         public Book(String title, String author, String isbn) {
             this.title = title.trim();
@@ -285,59 +669,2783 @@ public class LibraryManagementAppEnhanced extends JFrame {
         boolean isBorrowed() { return borrower != null && !borrower.isEmpty(); }
     }
 
+    // Books sit on a Shelf and are addressed by row; the table shows `view`, a list of rows.
+    // A removed book leaves its row dead until the catalog is next loaded, so the rows the
+    // indexes hold never move. -Dlibrary.lean=true keeps the catalog column by column.
     static class BookTableModel extends AbstractTableModel {
-        private List<Book> books = new ArrayList<>();
-        private List<Book> view = books;
+        private final boolean lean;
+        private Shelf shelf;
+        private Rows all = new Rows(16), view = all;
+        private final TrigramIndex index = new TrigramIndex();
+        private int indexedRows; // rows below this are in the trigram index; searches build it up in slices
+        private int viewVersion; // bumped whenever a search or reset takes over the view
+        private int[] indexId = new int[0]; // row -> id in the trigram index
+        private final IsbnTable byIsbn = new IsbnTable();
+        private final SortIndex[] sorts = new SortIndex[6];
         private final String[] cols = {"Title", "Author", "ISBN", "Status", "Borrower", "Borrowed On"};
         private SimpleDateFormat df = new SimpleDateFormat("dd-MMM-yyyy HH:mm");
 
+        BookTableModel(boolean lean) {
+            this.lean = lean;
+            shelf = newShelf(16);
+            for (int c = 0; c < sorts.length; c++) sorts[c] = new SortIndex(c);
+        }
+
+        private Shelf newShelf(int capacity) { return lean ? new ColumnShelf(capacity) : new ObjectShelf(capacity); }
+
         public int getRowCount() { return view.size(); }
         public int getColumnCount() { return cols.length; }
         public String getColumnName(int c) { return cols[c]; }
         public Object getValueAt(int r, int c) {
-            Book b = view.get(r);
+            int row = view.get(r);
             switch (c) {
-                case 0: return b.title;
-                case 1: return b.author;
-                case 2: return b.isbn;
-                case 3: return b.isBorrowed() ? "Borrowed" : "Available";
-                case 4: return b.borrower == null ? "-" : b.borrower;
-                case 5: return b.borrowedOn == null ? "-" : df.format(b.borrowedOn);
+                case 0: return shelf.title(row);
+                case 1: return shelf.author(row);
+                case 2: return shelf.isbn(row);
+                case 3: return shelf.borrower(row) != null ? "Borrowed" : "Available";
+                case 4: { String b = shelf.borrower(row); return b == null ? "-" : b; }
+                case 5: { long on = shelf.borrowedOn(row); return on == Shelf.NO_DATE ? "-" : df.format(new Date(on)); }
                 default: return "";
             }
         }
 
         // CRUD
-        public void addBook(Book b) { books.add(b); resetFilter(); fireTableDataChanged(); }
-        public void setBooks(List<Book> list) { books = new ArrayList<>(list); view = books; fireTableDataChanged(); }
-        public List<Book> getAllBooks() { return new ArrayList<>(books); }
-        public Book getBookAt(int idx) { return view.get(idx); }
-        public void removeBook(int idx) { Book real = view.get(idx); books.remove(real); resetFilter(); fireTableDataChanged(); }
+        public void addBook(Book b) { insert(b); resetFilter(); }
+        // Adds the books whose ISBN isn't taken yet, with one table event; returns them.
+        public List<Book> addBooks(List<Book> batch) {
+            List<Book> added = new ArrayList<>();
+            for (Book b : batch) {
+                if (rowOf(b.isbn) >= 0) continue;
+                insert(b);
+                added.add(b);
+            }
+            if (!added.isEmpty() && view == all) fireTableRowsInserted(all.size() - added.size(), all.size() - 1);
+            return added;
+        }
+        public void setBooks(List<Book> list) { load(list); fireTableDataChanged(); }
+        // live books; in lean mode a copy of the columns, so it can be read off the EDT
+        public List<Book> getAllBooks() { return shelf.snapshot(all); }
+        public Book getBookAt(int idx) { return shelf.get(view.get(idx)); }
+        public void removeBook(int idx) {
+            erase(view.get(idx));
+            resetFilter();
+        }
+        public Book updateBook(int idx, String title, String author, String isbn) {
+            int row = view.get(idx);
+            change(row, title, author, isbn);
+            fireTableRowsUpdated(idx, idx);
+            return shelf.get(row);
+        }
+        public int indexOf(Book b) { return view == all ? Math.max(all.find(b.id), -1) : view.indexOf(b.id); }
+
+        // The same changes without table events, for loading and replaying the log; the
+        // caller fires once when done.
+        void load(List<Book> list) {
+            shelf = newShelf(list.size());
+            all = new Rows(list.size());
+            view = all;
+            index.clear();
+            indexedRows = 0;
+            byIsbn.clear(list.size());
+            for (SortIndex s : sorts) s.clear();
+            for (Book b : list) {
+                int row = shelf.add(b);
+                all.add(row);
+                byIsbn.put(shelf, isbnKey(b.isbn), row, false);
+            }
+        }
+        int insert(Book b) {
+            int row = shelf.add(b);
+            all.add(row);
+            byIsbn.put(shelf, isbnKey(b.isbn), row, true);
+            entering(row, 0, 5);
+            if (row == indexedRows) {
+                indexRow(row);
+                indexedRows++;
+            }
+            return row;
+        }
+        void change(int row, String title, String author, String isbn) {
+            byIsbn.remove(isbnKey(shelf.isbn(row)), row);
+            leaving(row, 0, 2);
+            shelf.set(row, title, author, isbn);
+            byIsbn.put(shelf, isbnKey(isbn), row, true);
+            entering(row, 0, 2);
+            reindex(row);
+        }
+        void erase(int row) {
+            byIsbn.remove(isbnKey(shelf.isbn(row)), row);
+            leaving(row, 0, 5);
+            shelf.remove(row);
+            all.removeAt(all.find(row));
+            if (view != all && view.indexOf(row) >= 0) view.removeAt(view.indexOf(row));
+            reindex(row);
+        }
+        void lend(int row, String borrower, long on) {
+            leaving(row, 3, 5);
+            shelf.lend(row, borrower, on);
+            entering(row, 3, 5);
+        }
+        int rowOf(String isbn) { return byIsbn.find(shelf, isbnKey(isbn)); }
+        String isbnAt(int row) { return shelf.isbn(row); }
+        Book bookAtRow(int row) { return shelf.get(row); }
+
+        // A loan made at a desk, shown in the table.
+        void lendRow(int row, String borrower, long on) {
+            lend(row, borrower, on);
+            int i = view == all ? all.find(row) : view.indexOf(row);
+            if (i >= 0) fireTableRowsUpdated(i, i);
+        }
+
+        // every book that is out
+        List<Circulation.Loan> loans() {
+            List<Circulation.Loan> out = new ArrayList<>();
+            for (int i = 0; i < all.size(); i++) {
+                int row = all.get(i);
+                String borrower = shelf.borrower(row);
+                if (borrower != null) out.add(new Circulation.Loan(shelf.isbn(row), borrower, shelf.borrowedOn(row)));
+            }
+            return out;
+        }
+
+        // ISBN lookups ignore hyphens, spaces and the case of a trailing X check digit
+        public Book findByIsbn(String isbn) {
+            int row = rowOf(isbn);
+            return row < 0 ? null : shelf.get(row);
+        }
+        static String isbnKey(String isbn) {
+            StringBuilder key = null;
+            for (int i = 0; i < isbn.length(); i++) {
+                char c = isbn.charAt(i), k = Character.toUpperCase(c);
+                boolean skip = c == '-' || Character.isWhitespace(c);
+                if (key == null && (skip || k != c)) key = new StringBuilder(isbn.length()).append(isbn, 0, i);
+                if (key != null && !skip) key.append(k);
+            }
+            // most ISBNs are plain digits and serve as their own key
+            return key == null ? isbn : key.toString();
+        }
+
+        private void indexRow(int row) {
+            if (row >= indexId.length) indexId = Arrays.copyOf(indexId, Math.max(16, row * 3 / 2 + 1));
+            indexId[row] = index.add(row, shelf.title(row), shelf.author(row), shelf.isbn(row));
+        }
+
+        // A row's place in the sort indexes of columns first..last is given up before its
+        // values there change and taken again afterwards.
+        private void leaving(int row, int first, int last) { for (int c = first; c <= last; c++) sorts[c].leaving(shelf, row); }
+        private void entering(int row, int first, int last) { for (int c = first; c <= last; c++) sorts[c].entering(row); }
+
+        // Positions in the view in the order of `column`. A view much smaller than the
+        // catalog is sorted on its own; otherwise the column's index is walked and the
+        // view's rows picked out of it.
+        int[] sortedView(int column) {
+            int n = view.size();
+            int[] out = new int[n];
+            if (n < shelf.rows() / 64) {
+                for (int i = 0; i < n; i++) out[i] = i;
+                SortIndex by = sorts[column];
+                Rows v = view;
+                SortIndex.sort(out, n, (a, b) -> by.compare(shelf, v.get(a), v.get(b)));
+                return out;
+            }
+            Rows order = sorts[column].rows(shelf, all);
+            int[] at = new int[shelf.rows()];
+            Arrays.fill(at, -1);
+            for (int i = 0; i < n; i++) at[view.rows[i]] = i;
+            for (int i = 0, k = 0; i < order.size(); i++) {
+                int p = at[order.rows[i]];
+                if (p >= 0) out[k++] = p;
+            }
+            return out;
+        }
+
+        // two positions in the view compared by `column`, the way sortedView orders them
+        int compareRows(int column, int a, int b) { return sorts[column].compare(shelf, view.get(a), view.get(b)); }
+
+        // Drops the row's old entry and re-adds it if the row is still live. An index that has
+        // become mostly dead entries is thrown away for the next search to rebuild.
+        private void reindex(int row) {
+            if (row >= indexedRows) return;
+            index.remove(indexId[row]);
+            if (index.wasteful()) {
+                index.clear();
+                indexedRows = 0;
+            } else if (shelf.live(row)) {
+                indexRow(row);
+            }
+        }
+
+        // Search support, called by BookSearch off the EDT while it holds the catalog's read
+        // lock (edits on the EDT hold the write lock). There is only one search thread, so the
+        // index itself needs no further locking.
+
+        // Indexes up to `slice` more rows; true once every row is in.
+        boolean indexSome(int slice) {
+            int end = (int) Math.min(shelf.rows(), (long) indexedRows + slice);
+            for (int row = indexedRows; row < end; row++) if (shelf.live(row)) indexRow(row);
+            indexedRows = end;
+            return indexedRows == shelf.rows();
+        }
+        // rows that may contain `low` (null below three characters); needs a complete index
+        Rows candidates(String low) { return index.candidates(low); }
+        int shelfRows() { return shelf.rows(); }
+        boolean indexed() { return indexedRows == shelf.rows(); }
+        boolean matches(int row, String low) { return shelf.live(row) && TrigramIndex.matches(shelf, row, low); }
+
+        // EDT side: a search takes over the view when its first results arrive; batches of an
+        // older search or from before a reset are dropped.
+        int newView() { return ++viewVersion; }
+        boolean showing(int version) { return version == viewVersion; }
+        void showResults(int version, Rows rows, boolean first) {
+            if (version != viewVersion) return;
+            Rows shown = first ? new Rows(rows.size()) : view;
+            int from = shown.size();
+            // a book may have been deleted since the search saw it
+            for (int i = 0; i < rows.size(); i++) if (shelf.live(rows.get(i))) shown.add(rows.get(i));
+            if (first) {
+                view = shown;
+                fireTableDataChanged();
+            } else if (shown.size() > from) {
+                fireTableRowsInserted(from, shown.size() - 1);
+            }
+        }
+
+        public void resetFilter() { viewVersion++; view = all; fireTableDataChanged(); }
+
+        public int getRowCountFull() { return all.size(); }
+    }
+
+    // A growable list of rows.
+    static final class Rows {
+        private int[] rows;
+        private int size;
+
+        Rows(int capacity) { rows = new int[Math.max(capacity, 16)]; }
+
+        int size() { return size; }
+
+        void clear() { size = 0; }
 
-        // filter
-        public void filter(String q) {
-            String low = q.toLowerCase();
-            view = new ArrayList<>();
-            for (Book b : books) {
-                if (b.title.toLowerCase().contains(low) || b.author.toLowerCase().contains(low) || b.isbn.toLowerCase().contains(low)) {
-                    view.add(b);
+        int get(int i) {
+            if (i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+            return rows[i];
+        }
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 3 / 2);
+            rows[size++] = row;
+        }
+
+        void removeAt(int i) {
+            if (i < 0 || i >= size) return;
+            System.arraycopy(rows, i + 1, rows, i, size - i - 1);
+            size--;
+        }
+
+        int indexOf(int row) {
+            for (int i = 0; i < size; i++) if (rows[i] == row) return i;
+            return -1;
+        }
+
+        // binary search; only for lists kept in ascending order
+        int find(int row) { return Arrays.binarySearch(rows, 0, size, row); }
+    }
+
+    // ISBN key -> row, open-addressed. Slots keep the key's hash but not the key; a probe
+    // that matches a hash compares against the shelf, so no key strings are held.
+    static final class IsbnTable {
+        private int[] rows = new int[16]; // row + 1; 0 marks an empty slot
+        private int[] hashes = new int[16];
+        private int size;
+
+        int find(Shelf shelf, String key) {
+            int h = key.hashCode(), mask = rows.length - 1;
+            for (int s = slot(h, mask); rows[s] != 0; s = (s + 1) & mask) {
+                if (hashes[s] == h && key.equals(BookTableModel.isbnKey(shelf.isbn(rows[s] - 1)))) return rows[s] - 1;
+            }
+            return -1;
+        }
+
+        void put(Shelf shelf, String key, int row, boolean replace) {
+            int h = key.hashCode(), mask = rows.length - 1;
+            int s = slot(h, mask);
+            for (; rows[s] != 0; s = (s + 1) & mask) {
+                if (hashes[s] == h && key.equals(BookTableModel.isbnKey(shelf.isbn(rows[s] - 1)))) {
+                    if (replace) rows[s] = row + 1;
+                    return;
+                }
+            }
+            rows[s] = row + 1;
+            hashes[s] = h;
+            if (++size > rows.length / 2) grow();
+        }
+
+        void remove(String key, int row) {
+            int h = key.hashCode(), mask = rows.length - 1;
+            int s = slot(h, mask);
+            while (rows[s] != 0 && (rows[s] != row + 1 || hashes[s] != h)) s = (s + 1) & mask;
+            if (rows[s] == 0) return;
+            // pull later entries of the probe run back so lookups don't stop at the hole
+            for (int next = (s + 1) & mask; rows[next] != 0; next = (next + 1) & mask) {
+                int home = slot(hashes[next], mask);
+                if (((next - home) & mask) >= ((next - s) & mask)) {
+                    rows[s] = rows[next];
+                    hashes[s] = hashes[next];
+                    s = next;
+                }
+            }
+            rows[s] = 0;
+            size--;
+        }
+
+        void clear(int expected) {
+            int n = 16;
+            while (n / 2 < expected) n *= 2;
+            rows = new int[n];
+            hashes = new int[n];
+            size = 0;
+        }
+
+        private void grow() {
+            int[] oldRows = rows, oldHashes = hashes;
+            rows = new int[oldRows.length * 2];
+            hashes = new int[oldRows.length * 2];
+            int mask = rows.length - 1;
+            for (int i = 0; i < oldRows.length; i++) {
+                if (oldRows[i] == 0) continue;
+                int s = slot(oldHashes[i], mask);
+                while (rows[s] != 0) s = (s + 1) & mask;
+                rows[s] = oldRows[i];
+                hashes[s] = oldHashes[i];
+            }
+        }
+
+        private static int slot(int h, int mask) {
+            int x = h * 0x9E3779B9;
+            return (x ^ (x >>> 16)) & mask;
+        }
+    }
+
+    // ---------- Sorting ----------
+    // The live rows in the order of one table column, built the first time the column is
+    // sorted and kept up to date from then on: the model takes a row out before changing
+    // its value and queues it again afterwards, and queued rows are merged in when the
+    // column is next sorted. Ties go by row, so each row has one place a binary search finds.
+    static final class SortIndex {
+        interface Order { int compare(int a, int b); }
+
+        private final int column;
+        private Rows order; // null until the column is first sorted
+        private final Rows queued = new Rows(16);
+
+        SortIndex(int column) { this.column = column; }
+
+        void clear() {
+            order = null;
+            queued.clear();
+        }
+
+        void leaving(Shelf shelf, int row) {
+            if (order == null) return;
+            int q = queued.indexOf(row);
+            if (q >= 0) {
+                queued.removeAt(q);
+                return;
+            }
+            order.removeAt(find(shelf, row));
+        }
+
+        void entering(int row) { if (order != null) queued.add(row); }
+
+        Rows rows(Shelf shelf, Rows live) {
+            if (order == null) build(shelf, live);
+            else if (queued.size() > 0) merge(shelf);
+            return order;
+        }
+
+        int compare(Shelf shelf, int a, int b) {
+            int c = numeric() ? Long.compare(number(shelf, a), number(shelf, b)) : compareText(text(shelf, a), text(shelf, b));
+            return c != 0 ? c : Integer.compare(a, b);
+        }
+
+        // Sorts on values fetched once per row rather than on every comparison.
+        private void build(Shelf shelf, Rows live) {
+            int n = live.size();
+            Rows sorted = new Rows(n);
+            int[] rows = sorted.rows;
+            System.arraycopy(live.rows, 0, rows, 0, n);
+            if (numeric()) {
+                long[] key = new long[shelf.rows()];
+                for (int i = 0; i < n; i++) key[rows[i]] = number(shelf, rows[i]);
+                sort(rows, n, (a, b) -> {
+                    int c = Long.compare(key[a], key[b]);
+                    return c != 0 ? c : Integer.compare(a, b);
+                });
+            } else {
+                String[] key = new String[shelf.rows()];
+                for (int i = 0; i < n; i++) key[rows[i]] = text(shelf, rows[i]);
+                sort(rows, n, (a, b) -> {
+                    int c = compareText(key[a], key[b]);
+                    return c != 0 ? c : Integer.compare(a, b);
+                });
+            }
+            sorted.size = n;
+            order = sorted;
+        }
+
+        // The queued rows are few next to the index: each is placed by binary search and the
+        // index copied once around them.
+        private void merge(Shelf shelf) {
+            int k = queued.size();
+            int[] q = Arrays.copyOf(queued.rows, k);
+            sort(q, k, (a, b) -> compare(shelf, a, b));
+            queued.clear();
+            Rows merged = new Rows(order.size() + k);
+            int[] out = merged.rows;
+            int from = 0, to = 0;
+            for (int row : q) {
+                int at = -find(shelf, row) - 1;
+                System.arraycopy(order.rows, from, out, to, at - from);
+                to += at - from;
+                from = at;
+                out[to++] = row;
+            }
+            System.arraycopy(order.rows, from, out, to, order.size() - from);
+            merged.size = order.size() + k;
+            order = merged;
+        }
+
+        // Where the row is in the index, or -(insertion point) - 1 like Arrays.binarySearch.
+        private int find(Shelf shelf, int row) {
+            int lo = 0, hi = order.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(shelf, order.rows[mid], row);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -(lo + 1);
+        }
+
+        // Status sorts available before borrowed, dates with books on the shelf first.
+        private boolean numeric() { return column == 3 || column == 5; }
+
+        private long number(Shelf shelf, int row) {
+            return column == 3 ? (shelf.borrower(row) == null ? 0 : 1) : shelf.borrowedOn(row);
+        }
+
+        // lower-cased, so comparing is a plain compareTo; null for no borrower
+        private String text(Shelf shelf, int row) {
+            String s;
+            switch (column) {
+                case 0: s = shelf.title(row); break;
+                case 1: s = shelf.author(row); break;
+                case 2: s = shelf.isbn(row); break;
+                default: s = shelf.borrower(row);
+            }
+            return s == null ? null : s.toLowerCase(Locale.ROOT);
+        }
+
+        private static int compareText(String a, String b) {
+            if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+            return a.compareTo(b);
+        }
+
+        // Merge sort of a[0..n).
+        static void sort(int[] a, int n, Order order) { sort(a, new int[n], 0, n, order); }
+
+        private static void sort(int[] a, int[] tmp, int from, int to, Order order) {
+            if (to - from < 24) {
+                for (int i = from + 1; i < to; i++) {
+                    int x = a[i], j = i - 1;
+                    for (; j >= from && order.compare(a[j], x) > 0; j--) a[j + 1] = a[j];
+                    a[j + 1] = x;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(a, tmp, from, mid, order);
+            sort(a, tmp, mid, to, order);
+            if (order.compare(a[mid - 1], a[mid]) <= 0) return;
+            System.arraycopy(a, from, tmp, from, mid - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) a[k++] = order.compare(tmp[i], a[j]) <= 0 ? tmp[i++] : a[j++];
+            while (i < mid) a[k++] = tmp[i++];
+        }
+    }
+
+    // Sorts the table on one column at a time from the model's sort indexes, where a
+    // TableRowSorter would compare the formatted cell values of every row on each sort.
+    static final class BookSorter extends RowSorter<BookTableModel> {
+        private final BookTableModel model;
+        private int column = -1;
+        private boolean descending;
+        private int[] viewToModel, modelToView; // null while unsorted
+
+        BookSorter(BookTableModel model) { this.model = model; }
+
+        public BookTableModel getModel() { return model; }
+
+        public void toggleSortOrder(int column) {
+            descending = column == this.column && !descending;
+            this.column = column;
+            fireSortOrderChanged();
+            sort();
+        }
+
+        public List<? extends SortKey> getSortKeys() {
+            if (column < 0) return Collections.emptyList();
+            return Collections.singletonList(new SortKey(column, descending ? SortOrder.DESCENDING : SortOrder.ASCENDING));
+        }
+
+        // only the first key counts
+        public void setSortKeys(List<? extends SortKey> keys) {
+            SortKey key = keys == null || keys.isEmpty() ? null : keys.get(0);
+            if (key == null || key.getSortOrder() == SortOrder.UNSORTED) {
+                column = -1;
+            } else {
+                column = key.getColumn();
+                descending = key.getSortOrder() == SortOrder.DESCENDING;
+            }
+            fireSortOrderChanged();
+            sort();
+        }
+
+        public int convertRowIndexToModel(int index) {
+            if (viewToModel != null) return viewToModel[index];
+            if (index < 0 || index >= model.getRowCount()) throw new IndexOutOfBoundsException("Invalid index");
+            return index;
+        }
+
+        public int convertRowIndexToView(int index) {
+            if (modelToView != null) return modelToView[index];
+            if (index < 0 || index >= model.getRowCount()) throw new IndexOutOfBoundsException("Invalid index");
+            return index;
+        }
+
+        public int getViewRowCount() { return viewToModel != null ? viewToModel.length : model.getRowCount(); }
+        public int getModelRowCount() { return model.getRowCount(); }
+
+        public void modelStructureChanged() { sort(); }
+        public void allRowsChanged() { sort(); }
+        public void rowsInserted(int first, int last) { sort(); }
+        public void rowsDeleted(int first, int last) { sort(); }
+        public void rowsUpdated(int first, int last) {
+            if (first == last && viewToModel != null) move(first);
+            else sort();
+        }
+        public void rowsUpdated(int first, int last, int column) { if (column == this.column) rowsUpdated(first, last); }
+
+        // A borrow, return or edit changes one row: it is shifted to its new place by binary
+        // search and the rows in between move up or down one, instead of sorting them all again.
+        // The table keeps its selection across the model event itself, so no old order is passed.
+        private void move(int index) {
+            int n = viewToModel.length, at = modelToView[index];
+            int from, to, p;
+            if (at > 0 && before(index, viewToModel[at - 1])) {
+                int lo = 0, hi = at - 1; // first place the row goes before
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (before(index, viewToModel[mid])) hi = mid;
+                    else lo = mid + 1;
+                }
+                System.arraycopy(viewToModel, lo, viewToModel, lo + 1, at - lo);
+                p = from = lo;
+                to = at;
+            } else if (at < n - 1 && before(viewToModel[at + 1], index)) {
+                int lo = at + 1, hi = n - 1; // last place the row goes after
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (before(viewToModel[mid], index)) lo = mid;
+                    else hi = mid - 1;
+                }
+                System.arraycopy(viewToModel, at + 1, viewToModel, at, lo - at);
+                p = to = lo;
+                from = at;
+            } else {
+                return;
+            }
+            viewToModel[p] = index;
+            for (int i = from; i <= to; i++) modelToView[viewToModel[i]] = i;
+            fireRowSorterChanged(null);
+        }
+
+        private boolean before(int a, int b) {
+            int c = model.compareRows(column, a, b);
+            return descending ? c > 0 : c < 0;
+        }
+
+        private void sort() {
+            if (column < 0 && viewToModel == null) return;
+            int[] last = viewToModel;
+            if (column < 0) {
+                viewToModel = modelToView = null;
+            } else {
+                int[] order = model.sortedView(column);
+                int n = order.length;
+                if (descending) {
+                    for (int i = 0; i < n / 2; i++) {
+                        int t = order[i];
+                        order[i] = order[n - 1 - i];
+                        order[n - 1 - i] = t;
+                    }
                 }
+                viewToModel = order;
+                modelToView = new int[n];
+                for (int i = 0; i < n; i++) modelToView[order[i]] = i;
+            }
+            fireRowSorterChanged(last);
+        }
+    }
+
+    // ---------- Shelves ----------
+    // Where the model keeps its books. Rows are handed out in increasing order and never
+    // reused; borrower is null for a book on the shelf and dates are epoch millis.
+    interface Shelf {
+        long NO_DATE = Long.MIN_VALUE;
+
+        int rows();
+        boolean live(int row);
+        String title(int row);
+        String author(int row);
+        String isbn(int row);
+        String borrower(int row);
+        long borrowedOn(int row);
+        Book get(int row); // with id set to the row
+        int add(Book b);
+        void set(int row, String title, String author, String isbn);
+        void lend(int row, String borrower, long on);
+        void remove(int row);
+        List<Book> snapshot(Rows live);
+    }
+
+    // A Book object per row; get() hands out the stored object itself.
+    static final class ObjectShelf implements Shelf {
+        private final List<Book> books;
+
+        ObjectShelf(int capacity) { books = new ArrayList<>(capacity); }
+
+        public int rows() { return books.size(); }
+        public boolean live(int row) { return books.get(row) != null; }
+        public String title(int row) { return books.get(row).title; }
+        public String author(int row) { return books.get(row).author; }
+        public String isbn(int row) { return books.get(row).isbn; }
+        public String borrower(int row) { Book b = books.get(row); return b.isBorrowed() ? b.borrower : null; }
+        public long borrowedOn(int row) { Date d = books.get(row).borrowedOn; return d == null ? NO_DATE : d.getTime(); }
+        public Book get(int row) { return books.get(row); }
+
+        public int add(Book b) {
+            b.id = books.size();
+            books.add(b);
+            return b.id;
+        }
+
+        public void set(int row, String title, String author, String isbn) {
+            Book b = books.get(row);
+            b.title = title;
+            b.author = author;
+            b.isbn = isbn;
+        }
+
+        public void lend(int row, String borrower, long on) {
+            Book b = books.get(row);
+            b.borrower = borrower;
+            b.borrowedOn = on == NO_DATE ? null : new Date(on);
+        }
+
+        public void remove(int row) { books.set(row, null); }
+
+        // the books themselves: a background reader may see one mid-change, which the
+        // change log allows for
+        public List<Book> snapshot(Rows live) {
+            List<Book> out = new ArrayList<>(live.size());
+            for (int i = 0; i < live.size(); i++) out.add(books.get(live.get(i)));
+            return out;
+        }
+    }
+
+    // The lean layout, one array per column. Titles and ISBNs are UTF-8 in a shared byte
+    // array (an edit appends the new text and strands the old, which is reclaimed once it
+    // makes up half the array), authors and borrowers are numbers into a table of distinct
+    // names, and dates are plain longs. get() builds a detached Book for the row.
+    static final class ColumnShelf implements Shelf {
+        private byte[] text = new byte[1 << 12];
+        private int textSize, stranded, rows;
+        private int[] textAt;   // -1 for a removed book
+        private int[] author;
+        private int[] borrower; // name id + 1, 0 when on the shelf
+        private long[] borrowedOn;
+        private Names names = new Names();
+
+        ColumnShelf(int capacity) {
+            capacity = Math.max(capacity, 16);
+            textAt = new int[capacity];
+            author = new int[capacity];
+            borrower = new int[capacity];
+            borrowedOn = new long[capacity];
+        }
+
+        public int rows() { return rows; }
+        public boolean live(int row) { return textAt[row] >= 0; }
+        public String title(int row) { return string(textAt[row]); }
+        public String author(int row) { return names.get(author[row]); }
+        public String isbn(int row) { return string(skip(textAt[row])); }
+        public String borrower(int row) { return borrower[row] == 0 ? null : names.get(borrower[row] - 1); }
+        public long borrowedOn(int row) { return borrowedOn[row]; }
+
+        public Book get(int row) {
+            Book b = new Book(title(row), author(row), isbn(row));
+            b.borrower = borrower(row);
+            if (borrowedOn[row] != NO_DATE) b.borrowedOn = new Date(borrowedOn[row]);
+            b.id = row;
+            return b;
+        }
+
+        public int add(Book b) {
+            if (rows == textAt.length) {
+                int n = rows * 3 / 2;
+                textAt = Arrays.copyOf(textAt, n);
+                author = Arrays.copyOf(author, n);
+                borrower = Arrays.copyOf(borrower, n);
+                borrowedOn = Arrays.copyOf(borrowedOn, n);
             }
-            fireTableDataChanged();
+            int at = append(b.title, b.isbn);
+            int row = rows++;
+            textAt[row] = at;
+            author[row] = names.id(b.author);
+            borrower[row] = b.isBorrowed() ? names.id(b.borrower) + 1 : 0;
+            borrowedOn[row] = b.borrowedOn == null ? NO_DATE : b.borrowedOn.getTime();
+            return row;
         }
 
-        public void resetFilter() { view = books; fireTableDataChanged(); }
+        public void set(int row, String title, String author, String isbn) {
+            remove(row);
+            textAt[row] = append(title, isbn);
+            this.author[row] = names.id(author);
+        }
+
+        public void lend(int row, String borrower, long on) {
+            this.borrower[row] = borrower == null || borrower.isEmpty() ? 0 : names.id(borrower) + 1;
+            borrowedOn[row] = on;
+        }
+
+        public void remove(int row) {
+            stranded += skip(skip(textAt[row])) - textAt[row];
+            textAt[row] = -1;
+        }
 
-        public Set<String> getAllISBNs() {
-            Set<String> s = new HashSet<>();
-            for (Book b : books) s.add(b.isbn);
-            return s;
+        // Copies the columns, sharing the text array: appends only ever write past the end
+        // the copy knows about, and compaction starts a new array.
+        public List<Book> snapshot(Rows live) {
+            ColumnShelf copy = new ColumnShelf(0);
+            copy.text = text;
+            copy.textSize = textSize;
+            copy.rows = rows;
+            copy.textAt = Arrays.copyOf(textAt, rows);
+            copy.author = Arrays.copyOf(author, rows);
+            copy.borrower = Arrays.copyOf(borrower, rows);
+            copy.borrowedOn = Arrays.copyOf(borrowedOn, rows);
+            copy.names = names.copy();
+            int[] at = Arrays.copyOf(live.rows, live.size());
+            return new AbstractList<Book>() {
+                public Book get(int i) { return copy.get(at[i]); }
+                public int size() { return at.length; }
+            };
         }
-        public Set<String> getAllISBNsExcept(String isbn) {
-            Set<String> s = getAllISBNs(); s.remove(isbn); return s;
+
+        // Offset of [varint length][title][varint length][isbn] in the text array.
+        private int append(String title, String isbn) {
+            byte[] t = title.getBytes(StandardCharsets.UTF_8), i = isbn.getBytes(StandardCharsets.UTF_8);
+            int need = t.length + i.length + 10;
+            if (stranded > textSize / 2 && stranded > 1 << 16) compact(need);
+            if ((long) textSize + need > Integer.MAX_VALUE - 8) throw new IllegalStateException("Catalog text exceeds 2 GB");
+            if (textSize + need > text.length) {
+                text = Arrays.copyOf(text, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(textSize + need, text.length * 3L / 2)));
+            }
+            int at = textSize;
+            put(t);
+            put(i);
+            return at;
         }
 
-        public int getRowCountFull() { return books.size(); }
+        private void put(byte[] b) {
+            int n = b.length;
+            while ((n & ~0x7F) != 0) {
+                text[textSize++] = (byte) (n & 0x7F | 0x80);
+                n >>>= 7;
+            }
+            text[textSize++] = (byte) n;
+            System.arraycopy(b, 0, text, textSize, b.length);
+            textSize += b.length;
+        }
+
+        // Moves live text into a new array.
+        private void compact(int spare) {
+            byte[] old = text;
+            text = new byte[Math.max(1 << 12, textSize - stranded + spare)];
+            textSize = 0;
+            for (int row = 0; row < rows; row++) {
+                int at = textAt[row];
+                if (at < 0) continue;
+                int len = skip(skip(at, old), old) - at;
+                textAt[row] = textSize;
+                System.arraycopy(old, at, text, textSize, len);
+                textSize += len;
+            }
+            stranded = 0;
+        }
+
+        private String string(int at) {
+            int len = 0, pos = at;
+            for (int shift = 0; ; shift += 7) {
+                byte b = text[pos++];
+                len |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            return new String(text, pos, len, StandardCharsets.UTF_8);
+        }
+
+        private int skip(int at) { return skip(at, text); }
+
+        // Offset just past the length-prefixed string at `at`.
+        private static int skip(int at, byte[] text) {
+            int len = 0, pos = at;
+            for (int shift = 0; ; shift += 7) {
+                byte b = text[pos++];
+                len |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            return pos + len;
+        }
+    }
+
+    // Distinct names, numbered in order of first appearance.
+    static final class Names {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] names = new String[16];
+        private int size;
+
+        int id(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                if (size == names.length) names = Arrays.copyOf(names, size * 2);
+                id = size;
+                names[size++] = name;
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+        String get(int id) { return names[id]; }
+
+        // For a reader on another thread; the copy never looks ids up by name.
+        Names copy() {
+            Names c = new Names();
+            c.names = Arrays.copyOf(names, size);
+            c.size = size;
+            return c;
+        }
+    }
+
+    // ---------- Circulation ----------
+    // Borrowing and returning for any number of desks at once. Loans live in a concurrent
+    // map keyed by ISBN; a loan changes under one of a fixed set of locks picked by the
+    // ISBN's hash, together with its log record, so a book can't be lent twice, the log
+    // has each book's loans in the order they happened, and desks busy with different
+    // books rarely wait on each other. Desks hold the read side of `catalog` while they
+    // check a book and log its loan; catalog edits and snapshots take the write side, so a
+    // book can't vanish mid-loan and no loan falls between the log and a snapshot. A loan
+    // is acknowledged once its record is durable (desks share fsyncs) and reaches the
+    // table model on the EDT. Loans are also kept in due-date order (see DueDates) and by
+    // borrower: a borrower's list is locked inside the book's stripe, so two desks can't
+    // take one borrower past the loan limit (-Dlibrary.maxLoans, 5 by default).
+    static final class Circulation {
+        enum Result { BORROWED, RETURNED, ALREADY_BORROWED, NOT_BORROWED, NO_SUCH_BOOK, LIMIT_REACHED }
+
+        static final int LOAN_LIMIT = Integer.getInteger("library.maxLoans", 5);
+
+        static final class Loan {
+            final String isbn, borrower;
+            final long on, due;
+            Loan(String isbn, String borrower, long on) { this(isbn, borrower, on, on + DueDates.LOAN_PERIOD); }
+            Loan(String isbn, String borrower, long on, long due) { this.isbn = isbn; this.borrower = borrower; this.on = on; this.due = due; }
+        }
+
+        private final BookTableModel model;
+        private final LibraryLog log;
+        private final ReentrantReadWriteLock catalog = new ReentrantReadWriteLock();
+        private final ConcurrentHashMap<String, Loan> loans = new ConcurrentHashMap<>();
+        // borrower -> loans, each list guarded by itself. A list is dropped, under its lock, once
+        // its last loan is returned, so whoever locks a list checks it is still the one mapped.
+        private final ConcurrentHashMap<String, List<Loan>> byBorrower = new ConcurrentHashMap<>();
+        private final Object[] stripes = new Object[256];
+        private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>(); // keys the model hasn't seen
+        private final AtomicBoolean drainQueued = new AtomicBoolean();
+        final DueDates dueDates = new DueDates();
+        volatile Runnable afterDrain; // on the EDT, once desk loans have reached the model
+
+        Circulation(BookTableModel model, LibraryLog log) {
+            this.model = model;
+            this.log = log;
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+        }
+
+        private Object stripe(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+        }
+
+        Result borrow(String isbn, String borrower, long on) throws IOException {
+            try (Operation.Timing timing = Operation.BORROW.start()) {
+                Result result = lend(isbn, borrower, on);
+                timing.ok();
+                return result;
+            }
+        }
+
+        Result giveBack(String isbn) throws IOException {
+            try (Operation.Timing timing = Operation.RETURN.start()) {
+                Result result = takeBack(isbn);
+                timing.ok();
+                return result;
+            }
+        }
+
+        private Result lend(String isbn, String borrower, long on) throws IOException {
+            String key = BookTableModel.isbnKey(isbn);
+            long end;
+            Lock read = catalog.readLock();
+            read.lock();
+            try {
+                int row = model.rowOf(key);
+                if (row < 0) return Result.NO_SUCH_BOOK;
+                Loan loan = new Loan(model.isbnAt(row), borrower, on);
+                synchronized (stripe(key)) {
+                    if (loans.containsKey(key)) return Result.ALREADY_BORROWED;
+                    while (true) {
+                        List<Loan> held = held(borrower);
+                        synchronized (held) {
+                            if (byBorrower.get(borrower) != held) continue;
+                            try {
+                                if (held.size() >= LOAN_LIMIT) return Result.LIMIT_REACHED;
+                                end = log.borrow(loan.isbn, borrower, on);
+                                loans.put(key, loan);
+                                held.add(loan);
+                                break;
+                            } finally {
+                                dropIfEmpty(borrower, held);
+                            }
+                        }
+                    }
+                    dueDates.add(loan);
+                }
+                pending.add(key);
+            } finally {
+                read.unlock();
+            }
+            log.sync(end);
+            publish();
+            return Result.BORROWED;
+        }
+
+        private Result takeBack(String isbn) throws IOException {
+            String key = BookTableModel.isbnKey(isbn);
+            long end;
+            Lock read = catalog.readLock();
+            read.lock();
+            try {
+                if (model.rowOf(key) < 0) return Result.NO_SUCH_BOOK;
+                synchronized (stripe(key)) {
+                    Loan loan = loans.get(key);
+                    if (loan == null) return Result.NOT_BORROWED;
+                    end = log.giveBack(loan.isbn);
+                    loans.remove(key);
+                    release(loan);
+                }
+                pending.add(key);
+            } finally {
+                read.unlock();
+            }
+            log.sync(end);
+            publish();
+            return Result.RETURNED;
+        }
+
+        Loan loanOf(String isbn) { return loans.get(BookTableModel.isbnKey(isbn)); }
+
+        int loanCount(String borrower) {
+            List<Loan> held = byBorrower.get(borrower);
+            if (held == null) return 0;
+            synchronized (held) { return held.size(); }
+        }
+
+        // in the order they were lent
+        List<Loan> loansOf(String borrower) {
+            List<Loan> held = byBorrower.get(borrower);
+            if (held == null) return Collections.emptyList();
+            synchronized (held) { return new ArrayList<>(held); }
+        }
+
+        private List<Loan> held(String borrower) { return byBorrower.computeIfAbsent(borrower, b -> new ArrayList<>(4)); }
+
+        private void hold(Loan loan) {
+            while (true) {
+                List<Loan> held = held(loan.borrower);
+                synchronized (held) {
+                    if (byBorrower.get(loan.borrower) != held) continue;
+                    held.add(loan);
+                    break;
+                }
+            }
+            dueDates.add(loan);
+        }
+
+        private void release(Loan loan) {
+            List<Loan> held = byBorrower.get(loan.borrower);
+            if (held != null) {
+                synchronized (held) {
+                    held.remove(loan);
+                    dropIfEmpty(loan.borrower, held);
+                }
+            }
+            dueDates.remove(loan);
+        }
+
+        // under the list's lock
+        private void dropIfEmpty(String borrower, List<Loan> held) {
+            if (held.isEmpty()) byBorrower.computeIfPresent(borrower, (b, l) -> l == held ? null : l);
+        }
+
+        int borrowerCount() { return byBorrower.size(); }
+
+        // Holds off every desk and brings the model up to date with their loans; the caller
+        // unlocks the returned lock once its catalog edit (and log record) is done. EDT only.
+        Lock lockCatalog() {
+            Lock write = catalog.writeLock();
+            write.lock();
+            drain();
+            return write;
+        }
+
+        // Re-reads the loan of `isbn` from the model after a catalog edit; under lockCatalog().
+        void track(String isbn) {
+            String key = BookTableModel.isbnKey(isbn);
+            int row = model.rowOf(key);
+            Book b = row < 0 ? null : model.bookAtRow(row);
+            Loan loan = b == null || !b.isBorrowed() ? null : new Loan(b.isbn, b.borrower, b.borrowedOn.getTime());
+            Loan old = loan == null ? loans.remove(key) : loans.put(key, loan);
+            if (old != null) release(old);
+            if (loan != null) hold(loan);
+        }
+
+        // Starts over from the loans in the model, after it is loaded; under lockCatalog().
+        void reset() {
+            loans.clear();
+            pending.clear();
+            byBorrower.clear();
+            List<Loan> all = model.loans();
+            for (Loan loan : all) {
+                loans.put(BookTableModel.isbnKey(loan.isbn), loan);
+                held(loan.borrower).add(loan);
+            }
+            dueDates.reset(all);
+        }
+
+        // Copies the loans desks made since the last call into the model. EDT only.
+        void drain() {
+            if (pending.isEmpty()) return;
+            // the shelf is only ever written under the write lock, so searches can read it
+            Lock write = catalog.writeLock();
+            write.lock();
+            try {
+                for (String key; (key = pending.poll()) != null; ) {
+                    int row = model.rowOf(key);
+                    if (row < 0) continue;
+                    Loan loan = loans.get(key);
+                    if (loan == null) model.lendRow(row, null, Shelf.NO_DATE);
+                    else model.lendRow(row, loan.borrower, loan.on);
+                }
+            } finally {
+                write.unlock();
+            }
+        }
+
+        Lock catalogReadLock() { return catalog.readLock(); }
+
+        private void publish() {
+            if (!drainQueued.compareAndSet(false, true)) return;
+            SwingUtilities.invokeLater(() -> {
+                drainQueued.set(false);
+                drain();
+                Runnable after = afterDrain;
+                if (after != null) after.run();
+            });
+        }
+    }
+
+    // Borrowed books in the order they fall due, due date being the day lent plus the loan
+    // period (-Dlibrary.loanDays, 14 by default). "What is overdue" and "what is due soon"
+    // read a slice of the ordering instead of checking every book. A timer sleeps until the
+    // earliest due date not yet announced, hands the listener every loan that has come due
+    // since and goes back to sleep; a new loan due sooner than that wakes it earlier.
+    static final class DueDates {
+        interface Listener { void overdue(List<Circulation.Loan> loans); } // on the EDT
+
+        static final long LOAN_PERIOD = TimeUnit.DAYS.toMillis(Long.getLong("library.loanDays", 14));
+        private static final Comparator<Circulation.Loan> BY_DUE = (a, b) -> {
+            int c = Long.compare(a.due, b.due);
+            return c != 0 ? c : a.isbn.compareTo(b.isbn);
+        };
+
+        private final ConcurrentSkipListSet<Circulation.Loan> byDue = new ConcurrentSkipListSet<>(BY_DUE);
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "due-dates");
+            t.setDaemon(true);
+            return t;
+        });
+        private long announced = Long.MIN_VALUE; // loans due before this have been announced
+        private long wakeAt = Long.MAX_VALUE;
+        private ScheduledFuture<?> wake;
+        volatile Listener listener;
+
+        void add(Circulation.Loan loan) {
+            byDue.add(loan);
+            synchronized (this) {
+                if (loan.due >= announced && loan.due < wakeAt) wakeAt(loan.due + 1);
+            }
+        }
+
+        void remove(Circulation.Loan loan) { byDue.remove(loan); }
+
+        // Starts over with these loans; those already overdue are announced again.
+        synchronized void reset(Collection<Circulation.Loan> loans) {
+            byDue.clear();
+            byDue.addAll(loans);
+            announced = Long.MIN_VALUE;
+            wakeAt(System.currentTimeMillis());
+        }
+
+        // due before `now`, longest overdue first
+        List<Circulation.Loan> overdue(long now) { return new ArrayList<>(byDue.headSet(probe(now), true)); }
+
+        // due from `now` until `millis` later, soonest first
+        List<Circulation.Loan> dueWithin(long now, long millis) {
+            return new ArrayList<>(byDue.subSet(probe(now), false, probe(now + millis), true));
+        }
+
+        // sorts ahead of every real loan due at the same time
+        private static Circulation.Loan probe(long due) { return new Circulation.Loan("", null, Shelf.NO_DATE, due); }
+
+        private synchronized void wakeAt(long at) {
+            if (wake != null) wake.cancel(false);
+            wakeAt = at;
+            wake = timer.schedule(this::announce, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void announce() {
+            long now = System.currentTimeMillis();
+            List<Circulation.Loan> due = new ArrayList<>(byDue.subSet(probe(announced), false, probe(now), true));
+            announced = now;
+            wake = null;
+            wakeAt = Long.MAX_VALUE;
+            Circulation.Loan next = byDue.ceiling(probe(now));
+            if (next != null) wakeAt(next.due + 1);
+            if (due.isEmpty()) return;
+            SwingUtilities.invokeLater(() -> {
+                Listener l = listener;
+                if (l != null) l.overdue(due);
+            });
+        }
+    }
+
+    // Desks borrowing and returning a shared set of books as fast as they can, first one
+    // desk and then `desks` at once, each run against a fresh catalog in a temporary
+    // directory. Afterwards no book may have been lent twice without a return in between,
+    // the loans, the borrower index and the table model must agree, and replaying the log
+    // must give the same loans. Prints the throughput of each run.
+    static final class StressTest {
+        static void run(int desks, int seconds, int books) throws Exception {
+            System.out.printf("%,d books, %d s per run%n", books, seconds);
+            double one = round(1, seconds, books);
+            if (desks > 1) {
+                double many = round(desks, seconds, books);
+                System.out.printf("%d desks: %.1fx the throughput of one%n", desks, many / one);
+            }
+        }
+
+        private static String isbn(int i) { return "978" + (1000000 + i); }
+
+        // operations per second
+        private static double round(int desks, int seconds, int books) throws Exception {
+            File dir = Files.createTempDirectory("library-stress").toFile();
+            try {
+                File storage = new File(dir, "library_data.ser");
+                LibraryLog log = new LibraryLog(storage);
+                BookTableModel model = new BookTableModel(Boolean.getBoolean("library.lean"));
+                List<Book> catalog = new ArrayList<>(books);
+                for (int i = 0; i < books; i++) catalog.add(new Book("Volume " + i, "Author " + i % 100, isbn(i)));
+                model.load(catalog);
+                log.writeSnapshot(model.getAllBooks(), log.rotate());
+                Circulation circulation = new Circulation(model, log);
+                // borrowers enough to take every book, so the loan limit refuses a few loans
+                int borrowers = Math.max(1, books / Circulation.LOAN_LIMIT);
+                AtomicLongArray lent = new AtomicLongArray(books), returned = new AtomicLongArray(books);
+                AtomicLong ops = new AtomicLong();
+                ExecutorService threads = Executors.newFixedThreadPool(desks);
+                List<Future<?>> running = new ArrayList<>();
+                long start = System.nanoTime(), end = start + TimeUnit.SECONDS.toNanos(seconds);
+                for (int d = 0; d < desks; d++) {
+                    long seed = d;
+                    running.add(threads.submit(() -> {
+                        Random random = new Random(seed);
+                        while (System.nanoTime() < end) {
+                            int b = random.nextInt(books);
+                            if (random.nextBoolean()) {
+                                String borrower = "Reader " + random.nextInt(borrowers);
+                                if (circulation.borrow(isbn(b), borrower, System.currentTimeMillis()) == Circulation.Result.BORROWED) lent.incrementAndGet(b);
+                            } else if (circulation.giveBack(isbn(b)) == Circulation.Result.RETURNED) {
+                                returned.incrementAndGet(b);
+                            }
+                            ops.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : running) f.get();
+                double secs = (System.nanoTime() - start) / 1e9;
+                threads.shutdown();
+                SwingUtilities.invokeAndWait(circulation::drain);
+                int out = check(circulation, model, lent, returned, borrowers);
+                log.close();
+
+                BookTableModel replayed = new BookTableModel(false);
+                LibraryLog reopened = new LibraryLog(storage);
+                try {
+                    reopened.load(replayed);
+                } finally {
+                    reopened.close();
+                }
+                for (int i = 0; i < books; i++) {
+                    Book a = model.findByIsbn(isbn(i)), b = replayed.findByIsbn(isbn(i));
+                    if (!Objects.equals(a.borrower, b.borrower) || !Objects.equals(a.borrowedOn, b.borrowedOn)) {
+                        throw new IllegalStateException("Replaying the log gives another loan of " + isbn(i));
+                    }
+                }
+                double rate = ops.get() / secs;
+                System.out.printf("%d desk%s: %,d borrows and returns in %.1f s, %,.0f/s; %,d books out, all checks passed%n",
+                        desks, desks == 1 ? "" : "s", ops.get(), secs, rate, out);
+                return rate;
+            } finally {
+                File[] files = dir.listFiles();
+                if (files != null) for (File f : files) f.delete();
+                dir.delete();
+            }
+        }
+
+        // returns how many books are out
+        private static int check(Circulation circulation, BookTableModel model, AtomicLongArray lent, AtomicLongArray returned, int borrowers) {
+            int out = 0;
+            Map<String, Integer> held = new HashMap<>();
+            for (int i = 0; i < lent.length(); i++) {
+                long net = lent.get(i) - returned.get(i);
+                if (net != 0 && net != 1) {
+                    throw new IllegalStateException(isbn(i) + " was lent " + lent.get(i) + " times but returned " + returned.get(i) + " times");
+                }
+                Circulation.Loan loan = circulation.loanOf(isbn(i));
+                if ((net == 1) != (loan != null)) throw new IllegalStateException("The loans disagree with the desks on " + isbn(i));
+                Book b = model.findByIsbn(isbn(i));
+                if (loan == null ? b.isBorrowed() : !loan.borrower.equals(b.borrower) || b.borrowedOn.getTime() != loan.on) {
+                    throw new IllegalStateException("The table model disagrees with the loans on " + isbn(i));
+                }
+                if (loan == null) continue;
+                out++;
+                if (!circulation.loansOf(loan.borrower).contains(loan)) {
+                    throw new IllegalStateException("The borrower index misses the loan of " + isbn(i) + " to " + loan.borrower);
+                }
+                held.merge(loan.borrower, 1, Integer::sum);
+            }
+            for (int r = 0; r < borrowers; r++) {
+                String borrower = "Reader " + r;
+                int n = held.getOrDefault(borrower, 0);
+                if (circulation.loanCount(borrower) != n) {
+                    throw new IllegalStateException("The borrower index gives " + borrower + " " + circulation.loanCount(borrower) + " loans, not " + n);
+                }
+                if (n > Circulation.LOAN_LIMIT) throw new IllegalStateException(borrower + " holds " + n + " books");
+            }
+            if (circulation.borrowerCount() != held.size()) {
+                throw new IllegalStateException("The borrower index has " + circulation.borrowerCount() + " borrowers, " + held.size() + " hold books");
+            }
+            return out;
+        }
+    }
+
+    // ---------- Catalog File ----------
+    // The binary snapshot: a header, the book records, the table of author and borrower
+    // names the records refer to by number, and the offset of every record. Strings are
+    // length-prefixed UTF-8 and dates epoch millis (Shelf.NO_DATE for none). Opening maps
+    // the file and reads only the header and name table; a book is decoded each time it
+    // is asked for, and books by the same author share one String.
+    static final class CatalogFile extends AbstractList<Book> implements RandomAccess {
+        private static final int MAGIC = 0x4C494243; // "LIBC"
+        private static final int VERSION = 1, HEADER = 40;
+        private final ByteBuffer data;
+        private final String[] names;
+        private final int count, offsets;
+        final long generation;
+
+        private CatalogFile(ByteBuffer data) throws IOException {
+            this.data = data;
+            if (data.capacity() < HEADER || data.getInt(0) != MAGIC) throw new IOException("Not a library catalog file");
+            if (data.getInt(4) != VERSION) throw new IOException("Unsupported catalog version " + data.getInt(4));
+            generation = data.getLong(8);
+            count = data.getInt(16);
+            int nameCount = data.getInt(20);
+            long namesAt = data.getLong(24), offsetsAt = data.getLong(32);
+            if (count < 0 || nameCount < 0 || namesAt < HEADER || namesAt > offsetsAt
+                    || offsetsAt + 4L * count != data.capacity()) throw new IOException("Catalog file is truncated");
+            offsets = (int) offsetsAt;
+            names = new String[nameCount];
+            ByteBuffer in = data.duplicate();
+            in.position((int) namesAt);
+            for (int i = 0; i < nameCount; i++) names[i] = readString(in);
+        }
+
+        static CatalogFile open(File file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() > Integer.MAX_VALUE) throw new IOException(file.getName() + " is too large to map");
+                return new CatalogFile(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            }
+        }
+
+        public int size() { return count; }
+
+        public Book get(int i) {
+            if (i < 0 || i >= count) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+            ByteBuffer in = data.duplicate();
+            in.position(data.getInt(offsets + 4 * i));
+            String title = readString(in), isbn = readString(in), author = names[readVarint(in)];
+            int borrower = readVarint(in);
+            long on = in.getLong();
+            Book b = new Book(title, author, isbn);
+            if (borrower > 0) b.borrower = names[borrower - 1];
+            if (on != Shelf.NO_DATE) b.borrowedOn = new Date(on);
+            return b;
+        }
+
+        // Written in one pass; the header, which needs the section offsets, goes in last.
+        static void write(File file, List<Book> books, long generation) throws IOException {
+            Map<String, Integer> ids = new HashMap<>();
+            List<String> table = new ArrayList<>();
+            int[] at = new int[books.size()];
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                out.write(new byte[HEADER]);
+                for (int i = 0; i < at.length; i++) {
+                    Book b = books.get(i);
+                    at[i] = out.size();
+                    writeString(out, b.title);
+                    writeString(out, b.isbn);
+                    writeVarint(out, nameId(b.author, ids, table));
+                    writeVarint(out, b.borrower == null ? 0 : nameId(b.borrower, ids, table) + 1);
+                    out.writeLong(b.borrowedOn == null ? Shelf.NO_DATE : b.borrowedOn.getTime());
+                }
+                long namesAt = out.size();
+                for (String s : table) writeString(out, s);
+                long offsetsAt = out.size();
+                for (int a : at) out.writeInt(a);
+                out.flush();
+                // DataOutputStream stops counting at Integer.MAX_VALUE
+                if (out.size() == Integer.MAX_VALUE) throw new IOException("Catalog is too large for one file");
+                ByteBuffer head = ByteBuffer.allocate(HEADER);
+                head.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(at.length).putInt(table.size())
+                        .putLong(namesAt).putLong(offsetsAt).flip();
+                while (head.hasRemaining()) fos.getChannel().write(head, head.position());
+                fos.getFD().sync();
+            }
+        }
+
+        private static int nameId(String name, Map<String, Integer> ids, List<String> table) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = table.size();
+                ids.put(name, id);
+                table.add(name);
+            }
+            return id;
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, b.length);
+            out.write(b);
+        }
+
+        private static String readString(ByteBuffer in) {
+            int len = readVarint(in);
+            byte[] b = new byte[len];
+            in.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private static void writeVarint(DataOutputStream out, int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+
+        private static int readVarint(ByteBuffer in) {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+        }
+    }
+
+    // ---------- Change Log ----------
+    // library_data.<generation>.bin holds a snapshot of the catalog covering every log
+    // generation before its own. Every change after that is appended (and fsynced) to
+    // library_data.<generation>.log as a checksummed record, so a desk transaction writes
+    // a few dozen bytes whatever the catalog size. Loading replays the logs from the
+    // snapshot's generation on. Snapshots are written while the desk keeps working, so a
+    // book may be caught mid-change; every record therefore sets absolute values and is
+    // safe to replay over a book that already has them. A catalog still kept as
+    // library_data.ser (trailed by its generation) is read the old way until converted.
+    static class LibraryLog implements Closeable {
+        interface Change { void writeTo(LibraryLog log) throws IOException; }
+
+        static final class Loaded {
+            final int books, replayed;
+            final File source;
+            Loaded(int books, int replayed, File source) { this.books = books; this.replayed = replayed; this.source = source; }
+        }
+
+        private static final byte ADD = 'A', UPDATE = 'U', DELETE = 'D', BORROW = 'B', RETURN = 'R';
+        private static final long SNAPSHOT_BYTES = 4 << 20;
+        private final File legacy, dir;
+        private final String base;
+        private FileChannel channel;
+        private long generation, size;
+        private final Object syncLock = new Object();
+        private long written, synced; // bytes appended / known durable, across generations
+
+        LibraryLog(File legacy) {
+            this.legacy = legacy;
+            this.dir = legacy.getAbsoluteFile().getParentFile();
+            String name = legacy.getName();
+            this.base = name.endsWith(".ser") ? name.substring(0, name.length() - 4) : name;
+        }
+
+        void add(Book b) throws IOException { append(ADD, b.isbn, b.title, b.author, b.isbn); }
+        void update(String oldIsbn, Book b) throws IOException { append(UPDATE, oldIsbn, b.title, b.author, b.isbn); }
+        void delete(Book b) throws IOException { append(DELETE, b.isbn); }
+        void addAll(List<Book> books) throws IOException {
+            long end = 0;
+            for (Book b : books) end = write(ADD, b.isbn, b.title, b.author, b.isbn);
+            sync(end);
+        }
+        // loans are only written here; the desk syncs them once it has let go of the catalog
+        long borrow(String isbn, String borrower, long on) throws IOException { return write(BORROW, isbn, borrower, Long.toString(on)); }
+        long giveBack(String isbn) throws IOException { return write(RETURN, isbn); }
+
+        synchronized boolean needsSnapshot() { return size >= SNAPSHOT_BYTES; }
+
+        private void append(byte op, String... fields) throws IOException {
+            try (Operation.Timing timing = Operation.SAVE.start()) {
+                sync(write(op, fields));
+                timing.ok();
+            }
+        }
+
+        // Record: length, op and UTF strings, CRC32 of the op and strings. Returns the
+        // position to hand to sync().
+        private synchronized long write(byte op, String... fields) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(op);
+            for (String f : fields) out.writeUTF(f);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 4, bytes.size() - 4);
+            out.writeInt((int) crc.getValue());
+            ByteBuffer rec = ByteBuffer.wrap(bytes.toByteArray());
+            rec.putInt(0, bytes.size() - 8);
+            if (channel == null) open(generation);
+            while (rec.hasRemaining()) {
+                int n = channel.write(rec, size);
+                size += n;
+                written += n;
+            }
+            return written;
+        }
+
+        // Makes everything written up to `upTo` durable. Writers that arrive while a force
+        // is under way wait for it and then usually find their record already covered, so
+        // many desks share one fsync.
+        void sync(long upTo) throws IOException {
+            synchronized (syncLock) {
+                FileChannel ch;
+                long target, from;
+                File file;
+                synchronized (this) {
+                    if (synced >= upTo) return;
+                    ch = channel;
+                    target = written;
+                    from = synced;
+                    file = logFile(generation);
+                }
+                PersistenceEvent event = PersistenceEvent.start("fsync");
+                try (Operation.Timing timing = Operation.FSYNC.start()) {
+                    try {
+                        ch.force(false);
+                    } catch (ClosedChannelException e) {
+                        // rotated meanwhile; open() forced the old log first
+                    }
+                    timing.ok();
+                }
+                event.finish(file, 0, target - from);
+                synchronized (this) {
+                    if (synced < target) synced = target;
+                }
+            }
+        }
+
+        // Switches appends to a new generation and returns it; a snapshot of the catalog as
+        // it is now covers everything logged before it.
+        synchronized long rotate() throws IOException {
+            open(generation + 1);
+            return generation;
+        }
+
+        // Each snapshot gets a new file, so one still mapped by a reader is never overwritten.
+        void writeSnapshot(List<Book> books, long generation) throws IOException {
+            PersistenceEvent event = PersistenceEvent.start("snapshot");
+            File file = snapshotFile(generation);
+            try (Operation.Timing timing = Operation.SNAPSHOT.start()) {
+                File tmp = new File(dir, base + ".tmp");
+                CatalogFile.write(tmp, books, generation);
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (legacy.exists()) Files.move(legacy.toPath(), new File(legacy.getPath() + ".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                removeBefore(generation);
+                timing.ok();
+            }
+            event.finish(file, books.size(), file.length());
+        }
+
+        // Drops snapshots and logs older than `generation`. A file that is still mapped
+        // can't be deleted on some platforms; it goes on a later pass.
+        private void removeBefore(long generation) {
+            for (String ext : new String[] {".bin", ".log"}) {
+                for (long g : generations(ext)) {
+                    if (g >= generation) continue;
+                    try {
+                        Files.deleteIfExists(new File(dir, base + "." + g + ext).toPath());
+                    } catch (IOException e) {
+                        // retried after the next snapshot
+                    }
+                }
+            }
+        }
+
+        File snapshotFile(long generation) { return new File(dir, base + "." + generation + ".bin"); }
+
+        @SuppressWarnings("unchecked")
+        static List<Book> readLegacy(File file) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                Object o = in.readObject();
+                if (!(o instanceof List)) throw new IOException("Saved data corrupted or incompatible");
+                return (List<Book>) o;
+            }
+        }
+
+        private void open(long g) throws IOException {
+            if (channel != null) {
+                channel.force(false);
+                synced = written;
+                channel.close();
+            }
+            channel = FileChannel.open(logFile(g).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            generation = g;
+            size = channel.size();
+        }
+
+        // Fills `model` (without table events) with the newest snapshot plus every logged
+        // change since; null if there is no saved data.
+        synchronized Loaded load(BookTableModel model) throws IOException, ClassNotFoundException {
+            PersistenceEvent event = PersistenceEvent.start("load");
+            try (Operation.Timing timing = Operation.LOAD.start()) {
+                Loaded loaded = loadLatest(model);
+                timing.ok();
+                if (loaded != null) event.finish(loaded.source, loaded.books, loaded.source.length());
+                return loaded;
+            }
+        }
+
+        private Loaded loadLatest(BookTableModel model) throws IOException, ClassNotFoundException {
+            Files.deleteIfExists(new File(dir, base + ".tmp").toPath());
+            List<Book> books = new ArrayList<>();
+            File source = null;
+            long from = 0;
+            List<Long> snapshots = generations(".bin");
+            if (!snapshots.isEmpty()) {
+                from = snapshots.get(snapshots.size() - 1);
+                source = snapshotFile(from);
+                books = CatalogFile.open(source);
+                removeBefore(from);
+            } else if (legacy.exists()) {
+                source = legacy;
+                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy), 1 << 16))) {
+                    Object o = in.readObject();
+                    if (!(o instanceof List)) throw new IOException("Saved data corrupted or incompatible");
+                    @SuppressWarnings("unchecked")
+                    List<Book> list = (List<Book>) o;
+                    books = list;
+                    try {
+                        from = in.readLong();
+                    } catch (EOFException e) {
+                        // written before the change log existed
+                    }
+                }
+            }
+            List<Long> logs = generations(".log");
+            if (source == null && logs.isEmpty()) return null;
+            model.load(books);
+            Replay replay = new Replay(model);
+            long last = from;
+            for (long g : logs) {
+                if (g < from) continue;
+                open(g);
+                replay(replay);
+                last = g;
+            }
+            if (channel == null || generation != last) open(last);
+            return new Loaded(model.getRowCountFull(), replay.count, source == null ? logFile(last) : source);
+        }
+
+        // Applies the intact records of the open log, then cuts off a torn tail.
+        private void replay(Replay replay) throws IOException {
+            long pos = 0, end = channel.size();
+            while (pos + 4 <= end) {
+                ByteBuffer head = ByteBuffer.allocate(4);
+                channel.read(head, pos);
+                int len = head.getInt(0);
+                if (len < 1 || pos + 8 + len > end) break;
+                ByteBuffer body = ByteBuffer.allocate(len + 4);
+                while (body.hasRemaining() && channel.read(body, pos + 4 + body.position()) > 0) { }
+                CRC32 crc = new CRC32();
+                crc.update(body.array(), 0, len);
+                if ((int) crc.getValue() != body.getInt(len)) break;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), 0, len));
+                replay.apply(in.readByte(), in);
+                pos += 8 + len;
+            }
+            if (pos < end) {
+                channel.truncate(pos);
+                channel.force(false);
+            }
+            size = pos;
+        }
+
+        private List<Long> generations(String ext) {
+            List<Long> gens = new ArrayList<>();
+            String[] names = dir.list();
+            if (names == null) return gens;
+            String prefix = base + ".";
+            for (String n : names) {
+                if (!n.startsWith(prefix) || !n.endsWith(ext)) continue;
+                try {
+                    gens.add(Long.parseLong(n.substring(prefix.length(), n.length() - ext.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+            Collections.sort(gens);
+            return gens;
+        }
+
+        private File logFile(long g) { return new File(dir, base + "." + g + ".log"); }
+
+        public synchronized void close() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+        }
+    }
+
+    // Re-applies logged changes to the loaded catalog, finding books by ISBN.
+    static final class Replay {
+        private final BookTableModel model;
+        int count;
+
+        Replay(BookTableModel model) { this.model = model; }
+
+        void apply(byte op, DataInputStream in) throws IOException {
+            count++;
+            String isbn = in.readUTF();
+            int row = model.rowOf(isbn);
+            switch (op) {
+                case LibraryLog.ADD:
+                case LibraryLog.UPDATE: {
+                    String title = in.readUTF(), author = in.readUTF(), newIsbn = in.readUTF();
+                    // the snapshot may already hold the book under its new ISBN
+                    if (row < 0) row = model.rowOf(newIsbn);
+                    if (row < 0) model.insert(new Book(title, author, newIsbn));
+                    else model.change(row, title, author, newIsbn);
+                    break;
+                }
+                case LibraryLog.DELETE:
+                    if (row >= 0) model.erase(row);
+                    break;
+                case LibraryLog.BORROW: {
+                    String borrower = in.readUTF();
+                    long at = Long.parseLong(in.readUTF());
+                    if (row >= 0) model.lend(row, borrower, at);
+                    break;
+                }
+                case LibraryLog.RETURN:
+                    if (row >= 0) model.lend(row, null, Shelf.NO_DATE);
+                    break;
+                default:
+                    throw new IOException("Unknown log record " + (char) op);
+            }
+        }
+    }
+
+    // ---------- Background Search ----------
+    // Searches run one at a time on a background thread; starting one makes the one before
+    // it stop at its next slice. The catalog is read under the circulation's read lock a
+    // slice of rows at a time, so an edit on the EDT waits for one slice at most. Matches
+    // reach the table in batches: the first replaces the old results in one step, later
+    // ones are appended.
+    static final class BookSearch {
+        interface Listener { void update(boolean done, long ms); } // on the EDT, while the search owns the view
+
+        private static final int SLICE = 1 << 16;
+        private final BookTableModel model;
+        private final Lock read;
+        private final AtomicInteger latest = new AtomicInteger();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "book-search");
+            t.setDaemon(true);
+            return t;
+        });
+
+        BookSearch(BookTableModel model, Lock read) {
+            this.model = model;
+            this.read = read;
+        }
+
+        // EDT only.
+        void start(String query, Listener listener) {
+            int id = latest.incrementAndGet();
+            int version = model.newView();
+            String low = query.toLowerCase(Locale.ROOT);
+            executor.execute(() -> run(id, version, low, listener));
+        }
+
+        void cancel() { latest.incrementAndGet(); }
+
+        private boolean stale(int id) { return latest.get() != id; }
+
+        private void run(int id, int version, String low, Listener listener) {
+            SearchEvent event = SearchEvent.start();
+            int found = 0;
+            try (Operation.Timing timing = Operation.SEARCH.start()) {
+                found = scan(id, version, low, listener);
+                // superseded searches stay out of the latency figures
+                if (found >= 0) timing.ok();
+                else timing.discard();
+            } finally {
+                event.finish(low, found);
+            }
+        }
+
+        // Streams the matches to the EDT; returns how many, or -1 once superseded.
+        private int scan(int id, int version, String low, Listener listener) {
+            long start = System.nanoTime();
+            int found = 0;
+            // queries of three characters or more go through the trigram index, which the
+            // first such search builds (and a cancelled one leaves partly built)
+            Rows candidates = null;
+            while (low.length() >= 3 && candidates == null) {
+                if (stale(id)) return -1;
+                read.lock();
+                try {
+                    if (model.indexSome(SLICE)) candidates = model.candidates(low);
+                } finally {
+                    read.unlock();
+                }
+            }
+            boolean first = true;
+            for (int i = 0; ; ) {
+                if (stale(id)) return -1;
+                Rows batch = new Rows(16);
+                boolean done;
+                read.lock();
+                try {
+                    int n = candidates == null ? model.shelfRows() : candidates.size();
+                    for (int stop = Math.min(n, i + SLICE); i < stop; i++) {
+                        int row = candidates == null ? i : candidates.get(i);
+                        if (model.matches(row, low)) batch.add(row);
+                    }
+                    done = i >= n;
+                } finally {
+                    read.unlock();
+                }
+                found += batch.size();
+                if (batch.size() > 0 || done) {
+                    boolean replace = first;
+                    long ms = (System.nanoTime() - start) / 1000000;
+                    SwingUtilities.invokeLater(() -> {
+                        model.showResults(version, batch, replace);
+                        if (model.showing(version)) listener.update(done, ms);
+                    });
+                    first = false;
+                }
+                if (done) return found;
+            }
+        }
+    }
+
+    // ---------- Search Index ----------
+    // Trigram index over the lower-cased title, author and ISBN of every book. Entries get
+    // increasing ids, so each posting list stays sorted and is stored as varint gaps. A
+    // removed or edited book just leaves a dead id behind (an edit re-adds the book under
+    // a new one); the model rebuilds the index once dead ids outnumber live ones.
+    static class TrigramIndex {
+        // open-addressed trigram -> postings table; a key of 0 marks an empty slot
+        private long[] keys = new long[1 << 12];
+        private Postings[] lists = new Postings[1 << 12];
+        private int grams;
+        private int[] rowOf = new int[16]; // id -> row, -1 once removed
+        private int ids, live;
+
+        int add(int row, String title, String author, String isbn) {
+            if (ids == rowOf.length) rowOf = Arrays.copyOf(rowOf, ids * 3 / 2);
+            int id = ids++;
+            rowOf[id] = row;
+            live++;
+            long[] grams = grams(title, author, isbn);
+            for (int i = 0; i < grams.length; i++) {
+                if (i > 0 && grams[i] == grams[i - 1]) continue;
+                postings(grams[i], true).add(id);
+            }
+            return id;
+        }
+
+        void remove(int id) {
+            if (id < 0 || id >= ids || rowOf[id] < 0) return;
+            rowOf[id] = -1;
+            live--;
+        }
+
+        boolean wasteful() { return ids - live > Math.max(live, 1024); }
+
+        void clear() {
+            keys = new long[1 << 12];
+            lists = new Postings[1 << 12];
+            grams = 0;
+            rowOf = new int[16];
+            ids = 0;
+            live = 0;
+        }
+
+        // Rows that contain every trigram of `low`, in id order, or null when the query is
+        // too short to have a trigram. Callers still have to check the substring itself.
+        Rows candidates(String low) {
+            if (low.length() < 3) return null;
+            List<Postings> lists = new ArrayList<>();
+            for (int i = 0; i + 3 <= low.length(); i++) {
+                Postings p = postings(gram(low, i), false);
+                if (p == null) return new Rows(0);
+                if (!lists.contains(p)) lists.add(p);
+            }
+            lists.sort(Comparator.comparingInt(p -> p.count));
+            int[] ids = lists.get(0).decode();
+            int n = ids.length;
+            for (int i = 1; i < lists.size() && n > 0; i++) n = lists.get(i).retain(ids, n);
+            Rows out = new Rows(n);
+            for (int i = 0; i < n; i++) {
+                if (rowOf[ids[i]] >= 0) out.add(rowOf[ids[i]]);
+            }
+            return out;
+        }
+
+        static boolean matches(Shelf shelf, int row, String low) {
+            return shelf.title(row).toLowerCase(Locale.ROOT).contains(low) || shelf.author(row).toLowerCase(Locale.ROOT).contains(low)
+                    || shelf.isbn(row).toLowerCase(Locale.ROOT).contains(low);
+        }
+
+        private Postings postings(long gram, boolean create) {
+            int mask = keys.length - 1;
+            int slot = slot(gram, mask);
+            while (keys[slot] != 0) {
+                if (keys[slot] == gram) return lists[slot];
+                slot = (slot + 1) & mask;
+            }
+            if (!create) return null;
+            if (++grams > keys.length / 2) {
+                grow();
+                return postings(gram, true);
+            }
+            keys[slot] = gram;
+            return lists[slot] = new Postings();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Postings[] oldLists = lists;
+            keys = new long[oldKeys.length * 2];
+            lists = new Postings[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0) slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                lists[slot] = oldLists[i];
+            }
+        }
+
+        private static int slot(long gram, int mask) {
+            long h = gram * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        // The trigrams of all three fields, sorted so duplicates sit next to each other.
+        private static long[] grams(String title, String author, String isbn) {
+            String[] fields = {title.toLowerCase(Locale.ROOT), author.toLowerCase(Locale.ROOT), isbn.toLowerCase(Locale.ROOT)};
+            int n = 0;
+            for (String f : fields) n += Math.max(0, f.length() - 2);
+            long[] grams = new long[n];
+            n = 0;
+            for (String f : fields) {
+                for (int i = 0; i + 3 <= f.length(); i++) grams[n++] = gram(f, i);
+            }
+            Arrays.sort(grams);
+            return grams;
+        }
+
+        private static long gram(String s, int i) {
+            return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+    }
+
+    // Sorted ids as varint-encoded gaps.
+    static final class Postings {
+        private byte[] data = new byte[4];
+        private int size, last = -1;
+        int count;
+
+        void add(int id) {
+            int gap = id - last;
+            last = id;
+            count++;
+            if (size + 5 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            while ((gap & ~0x7F) != 0) {
+                data[size++] = (byte) (gap & 0x7F | 0x80);
+                gap >>>= 7;
+            }
+            data[size++] = (byte) gap;
+        }
+
+        int[] decode() {
+            int[] ids = new int[count];
+            int pos = 0, id = -1;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                id += gap;
+                ids[i] = id;
+            }
+            return ids;
+        }
+
+        // Keeps the first `n` of the sorted `ids` that are also in this list; returns how many.
+        int retain(int[] ids, int n) {
+            int pos = 0, id = -1, kept = 0, i = 0;
+            for (int read = 0; read < count && i < n; read++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                id += gap;
+                while (i < n && ids[i] < id) i++;
+                if (i < n && ids[i] == id) ids[kept++] = ids[i++];
+            }
+            return kept;
+        }
+    }
+
+    // ---------- CSV Import ----------
+    // Reads a CSV of books a few MB at a time, cutting each chunk after its last complete
+    // record (a line break outside quotes). Chunks are parsed on all cores while the next
+    // ones are read; results come back in file order and go to the sink in batches. The
+    // header names the Title, Author and ISBN columns (any order, case ignored); without
+    // one the first three columns are used. Loan columns are not imported. ISBNs are taken
+    // as the Add dialog takes them; one without a valid ISBN-10/13 check digit is imported
+    // but reported.
+    static final class CsvImport {
+        interface Sink { int add(List<Book> batch) throws Exception; } // returns how many were new
+
+        static final class Report {
+            long rows, added, duplicates, rejected, unchecked;
+            boolean cancelled;
+            final List<String> problems = new ArrayList<>();
+        }
+
+        private static final int CHUNK = 4 << 20, BATCH = 20000, MAX_PROBLEMS = 10;
+
+        // The valid books of one chunk, plus its rejected and unchecked rows (row numbers within
+        // the chunk).
+        private static final class Parsed {
+            final List<Book> books = new ArrayList<>();
+            int rows, rejected, unchecked;
+            final List<Integer> problemRows = new ArrayList<>();
+            final List<String> problems = new ArrayList<>();
+        }
+
+        static Report run(File file, Sink sink, IntConsumer progress, BooleanSupplier cancelled) throws Exception {
+            Report report = new Report();
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "csv-import");
+                t.setDaemon(true);
+                return t;
+            });
+            long total = Math.max(1, file.length());
+            try (InputStream in = new FileInputStream(file)) {
+                Deque<Future<Parsed>> inFlight = new ArrayDeque<>();
+                List<Book> batch = new ArrayList<>(BATCH);
+                byte[] buf = new byte[CHUNK];
+                int len = 0, n;
+                long read = 0;
+                int[] cols = null;
+                boolean eof = false;
+                while (!eof && !cancelled.getAsBoolean()) {
+                    while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+                        len += n;
+                        read += n;
+                    }
+                    eof = len < buf.length;
+                    if (cols == null) {
+                        int start = len >= 3 && (buf[0] & 0xFF) == 0xEF && (buf[1] & 0xFF) == 0xBB && (buf[2] & 0xFF) == 0xBF ? 3 : 0;
+                        List<String> header = new ArrayList<>();
+                        int next = record(buf, start, len, header);
+                        cols = columns(header);
+                        if (cols[3] == 1) start = next;
+                        System.arraycopy(buf, start, buf, 0, len - start);
+                        len -= start;
+                    }
+                    int cut = eof ? len : lastRecordEnd(buf, 0, len);
+                    if (cut == 0 && !eof) {
+                        // a record longer than the buffer
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                        continue;
+                    }
+                    byte[] chunk = Arrays.copyOf(buf, cut);
+                    int[] c = cols;
+                    inFlight.add(pool.submit(() -> parse(chunk, c)));
+                    byte[] rest = new byte[Math.max(CHUNK, len - cut)];
+                    System.arraycopy(buf, cut, rest, 0, len - cut);
+                    buf = rest;
+                    len -= cut;
+                    while (inFlight.size() > threads || (eof && !inFlight.isEmpty())) {
+                        take(inFlight.poll().get(), report, batch, sink);
+                        progress.accept((int) (100 * Math.min(read, total) / total) * 99 / 100);
+                    }
+                }
+                while (!inFlight.isEmpty()) take(inFlight.poll().get(), report, batch, sink);
+                report.cancelled = cancelled.getAsBoolean();
+                if (!batch.isEmpty()) flush(batch, report, sink);
+            } finally {
+                pool.shutdownNow();
+            }
+            progress.accept(100);
+            return report;
+        }
+
+        private static void take(Parsed p, Report report, List<Book> batch, Sink sink) throws Exception {
+            for (int i = 0; i < p.problems.size() && report.problems.size() < MAX_PROBLEMS; i++) {
+                report.problems.add("Row " + (report.rows + p.problemRows.get(i)) + ": " + p.problems.get(i));
+            }
+            report.rows += p.rows;
+            report.rejected += p.rejected;
+            report.unchecked += p.unchecked;
+            for (Book b : p.books) {
+                batch.add(b);
+                if (batch.size() == BATCH) flush(batch, report, sink);
+            }
+        }
+
+        private static void flush(List<Book> batch, Report report, Sink sink) throws Exception {
+            int added = sink.add(new ArrayList<>(batch));
+            report.added += added;
+            report.duplicates += batch.size() - added;
+            batch.clear();
+        }
+
+        // Title, author and ISBN column numbers, then 1 if the record was a header.
+        private static int[] columns(List<String> header) {
+            int[] cols = {-1, -1, -1, 1};
+            for (int i = 0; i < header.size(); i++) {
+                String h = header.get(i).trim().toLowerCase(Locale.ROOT);
+                if (h.equals("title") && cols[0] < 0) cols[0] = i;
+                else if (h.equals("author") && cols[1] < 0) cols[1] = i;
+                else if (h.equals("isbn") && cols[2] < 0) cols[2] = i;
+            }
+            if (cols[0] < 0 || cols[1] < 0 || cols[2] < 0) return new int[] {0, 1, 2, 0};
+            return cols;
+        }
+
+        // End of the last record that ends in buf[from, to), or `from` if none does.
+        private static int lastRecordEnd(byte[] buf, int from, int to) {
+            boolean quoted = false;
+            int end = from;
+            for (int i = from; i < to; i++) {
+                byte b = buf[i];
+                if (b == '"') quoted = !quoted;
+                else if (b == '\n' && !quoted) end = i + 1;
+            }
+            return end;
+        }
+
+        private static Parsed parse(byte[] buf, int[] cols) {
+            Parsed out = new Parsed();
+            List<String> fields = new ArrayList<>();
+            int pos = 0;
+            while (pos < buf.length) {
+                fields.clear();
+                pos = record(buf, pos, buf.length, fields);
+                if (fields.size() == 1 && fields.get(0).isEmpty()) continue; // blank line
+                out.rows++;
+                String title = field(fields, cols[0]), author = field(fields, cols[1]), isbn = field(fields, cols[2]);
+                String problem = title.isEmpty() ? "missing title"
+                        : author.isEmpty() ? "missing author"
+                        : isbn.isEmpty() ? "missing ISBN" : null;
+                if (problem == null) {
+                    out.books.add(new Book(title, author, isbn));
+                    if (validIsbn(isbn)) continue;
+                    out.unchecked++;
+                    problem = "ISBN \"" + isbn + "\" has no valid check digit (imported)";
+                } else {
+                    out.rejected++;
+                }
+                if (out.problems.size() < MAX_PROBLEMS) {
+                    out.problemRows.add(out.rows);
+                    out.problems.add(problem);
+                }
+            }
+            return out;
+        }
+
+        private static String field(List<String> fields, int i) { return i < fields.size() ? fields.get(i).trim() : ""; }
+
+        // Splits the record at `pos` into `fields`; returns where the next one starts. Quoted
+        // fields may hold commas, line breaks and doubled quotes.
+        private static int record(byte[] b, int pos, int end, List<String> fields) {
+            while (true) {
+                String f;
+                if (pos < end && b[pos] == '"') {
+                    int s = ++pos;
+                    boolean doubled = false;
+                    while (pos < end) {
+                        if (b[pos] == '"') {
+                            if (pos + 1 < end && b[pos + 1] == '"') {
+                                doubled = true;
+                                pos += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        pos++;
+                    }
+                    f = new String(b, s, pos - s, StandardCharsets.UTF_8);
+                    if (doubled) f = f.replace("\"\"", "\"");
+                    while (pos < end && b[pos] != ',' && b[pos] != '\n') pos++; // the closing quote and any stray text
+                } else {
+                    int s = pos;
+                    while (pos < end && b[pos] != ',' && b[pos] != '\n') pos++;
+                    int e = pos > s && b[pos - 1] == '\r' ? pos - 1 : pos;
+                    f = new String(b, s, e - s, StandardCharsets.UTF_8);
+                }
+                fields.add(f);
+                if (pos >= end) return end;
+                if (b[pos] == '\n') return pos + 1;
+                pos++;
+            }
+        }
+
+        // ISBN-10 or ISBN-13 with a correct check digit, hyphens and spaces allowed.
+        static boolean validIsbn(String isbn) {
+            String key = BookTableModel.isbnKey(isbn);
+            int sum = 0;
+            if (key.length() == 10) {
+                for (int i = 0; i < 10; i++) {
+                    char c = key.charAt(i);
+                    int d = c >= '0' && c <= '9' ? c - '0' : c == 'X' && i == 9 ? 10 : -1;
+                    if (d < 0) return false;
+                    sum += d * (10 - i);
+                }
+                return sum % 11 == 0;
+            }
+            if (key.length() == 13) {
+                for (int i = 0; i < 13; i++) {
+                    char c = key.charAt(i);
+                    if (c < '0' || c > '9') return false;
+                    sum += (c - '0') * (i % 2 == 0 ? 1 : 3);
+                }
+                return sum % 10 == 0;
+            }
+            return false;
+        }
+    }
+
+    // ---------- HTTP Service ----------
+    // The catalog without the window, for kiosks and the catalog search page:
+    //   GET  /books?q=text&limit=50      search (no q: the first books)
+    //   GET  /books/{isbn}               one book
+    //   POST /books                      add; title, author, isbn as form fields
+    //   POST /books/{isbn}/borrow        borrower as a form field
+    //   POST /books/{isbn}/return
+    //   GET  /borrowers/{name}           the borrower's loans
+    // Answers are JSON. Requests run concurrently, each on a virtual thread where the JDK has
+    // them. With no EDT owning the model, the catalog lock is what keeps it consistent:
+    // lookups and searches hold the read side, adds take the write side like the desk's
+    // edits do, and loans go through Circulation as from any other desk.
+    static final class LibraryService {
+        private static final int MAX_RESULTS = 1000;
+
+        private final BookTableModel model = new BookTableModel(Boolean.getBoolean("library.lean"));
+        private final LibraryLog log;
+        private final Circulation circulation;
+        private final AtomicBoolean snapshotting = new AtomicBoolean();
+        private final HttpServer server;
+
+        LibraryService(File storage, int port) throws Exception {
+            log = new LibraryLog(storage);
+            circulation = new Circulation(model, log);
+            long start = System.nanoTime();
+            LibraryLog.Loaded loaded;
+            Lock lock = circulation.lockCatalog();
+            try {
+                loaded = log.load(model);
+                circulation.reset();
+                model.indexSome(Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+            circulation.afterDrain = this::snapshotIfDue;
+            // the server writes headers and body separately; with Nagle on, each small answer
+            // waits out the client's delayed ACK (~40 ms)
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress(port), 1024);
+            server.createContext("/books", this::books);
+            server.createContext("/borrowers", this::borrowers);
+            server.setExecutor(threadPerTask("library-http", 64));
+            server.start();
+            System.out.printf("Serving %,d books on port %d (loaded in %d ms)%n", loaded == null ? 0 : loaded.books,
+                    server.getAddress().getPort(), (System.nanoTime() - start) / 1000000);
+        }
+
+        // A virtual thread per task on JDK 21+, otherwise a fixed pool of platform threads.
+        static ExecutorService threadPerTask(String name, int fallbackThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                AtomicInteger n = new AtomicInteger();
+                return Executors.newFixedThreadPool(fallbackThreads, r -> {
+                    Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        private void books(HttpExchange ex) throws IOException {
+            try (Operation.Timing timing = Operation.HTTP.start()) {
+                String[] path = path(ex, "/books");
+                String method = ex.getRequestMethod();
+                Map<String, String> params = params(ex);
+                if (path.length == 0 && method.equals("GET")) search(ex, params);
+                else if (path.length == 0 && method.equals("POST")) add(ex, params);
+                else if (path.length == 1 && method.equals("GET")) lookup(ex, path[0]);
+                else if (path.length == 2 && method.equals("POST") && path[1].equals("borrow")) borrow(ex, path[0], params.get("borrower"));
+                else if (path.length == 2 && method.equals("POST") && path[1].equals("return")) giveBack(ex, path[0]);
+                else error(ex, 404, "No such resource");
+                timing.ok();
+            } catch (Exception e) {
+                e.printStackTrace();
+                error(ex, 500, String.valueOf(e.getMessage()));
+            } finally {
+                ex.close();
+            }
+        }
+
+        private void borrowers(HttpExchange ex) throws IOException {
+            try (Operation.Timing timing = Operation.HTTP.start()) {
+                String[] path = path(ex, "/borrowers");
+                if (path.length != 1 || !ex.getRequestMethod().equals("GET")) {
+                    error(ex, 404, "No such resource");
+                    timing.ok();
+                    return;
+                }
+                StringBuilder out = new StringBuilder("{\"borrower\":");
+                json(out, path[0]).append(",\"limit\":").append(Circulation.LOAN_LIMIT).append(",\"loans\":[");
+                List<Circulation.Loan> loans = circulation.loansOf(path[0]);
+                for (int i = 0; i < loans.size(); i++) {
+                    Circulation.Loan loan = loans.get(i);
+                    out.append(i == 0 ? "{\"isbn\":" : ",{\"isbn\":");
+                    json(out, loan.isbn).append(",\"borrowedOn\":").append(loan.on).append(",\"due\":").append(loan.due).append('}');
+                }
+                send(ex, 200, out.append("]}"));
+                timing.ok();
+            } catch (Exception e) {
+                e.printStackTrace();
+                error(ex, 500, String.valueOf(e.getMessage()));
+            } finally {
+                ex.close();
+            }
+        }
+
+        private void search(HttpExchange ex, Map<String, String> params) throws IOException {
+            String low = params.getOrDefault("q", "").trim().toLowerCase(Locale.ROOT);
+            int limit;
+            try {
+                limit = Math.max(1, Math.min(MAX_RESULTS, Integer.parseInt(params.getOrDefault("limit", "50"))));
+            } catch (NumberFormatException e) {
+                error(ex, 400, "limit must be a number");
+                return;
+            }
+            StringBuilder out = new StringBuilder("{\"books\":[");
+            int found = 0;
+            SearchEvent event = SearchEvent.start();
+            Lock read = readIndexed();
+            try (Operation.Timing timing = Operation.SEARCH.start()) {
+                Rows rows = model.candidates(low);
+                int end = rows != null ? rows.size() : model.shelfRows();
+                for (int i = 0; i < end && found < limit; i++) {
+                    int row = rows != null ? rows.get(i) : i;
+                    if (!model.matches(row, low)) continue;
+                    if (found++ > 0) out.append(',');
+                    book(out, model.bookAtRow(row));
+                }
+                timing.ok();
+            } finally {
+                read.unlock();
+            }
+            event.finish(low, found);
+            send(ex, 200, out.append("],\"count\":").append(found).append('}'));
+        }
+
+        // Holds the read lock with the trigram index complete. Edits keep it complete, but
+        // one that leaves it mostly dead entries throws it away; rebuilding takes the write lock.
+        private Lock readIndexed() {
+            Lock read = circulation.catalogReadLock();
+            while (true) {
+                read.lock();
+                if (model.indexed()) return read;
+                read.unlock();
+                Lock write = circulation.lockCatalog();
+                try {
+                    model.indexSome(Integer.MAX_VALUE);
+                } finally {
+                    write.unlock();
+                }
+            }
+        }
+
+        private void lookup(HttpExchange ex, String isbn) throws IOException {
+            StringBuilder out = new StringBuilder();
+            Lock read = circulation.catalogReadLock();
+            read.lock();
+            try {
+                Book b = model.findByIsbn(isbn);
+                if (b != null) book(out, b);
+            } finally {
+                read.unlock();
+            }
+            if (out.length() == 0) error(ex, 404, "No book with ISBN " + isbn);
+            else send(ex, 200, out);
+        }
+
+        // Same rules as the Add Book dialog.
+        private void add(HttpExchange ex, Map<String, String> params) throws IOException {
+            String title = params.getOrDefault("title", "").trim(), author = params.getOrDefault("author", "").trim();
+            String isbn = params.getOrDefault("isbn", "").trim();
+            if (title.isEmpty() || author.isEmpty()) { error(ex, 400, "title and author are required"); return; }
+            Book b = new Book(title, author, isbn.isEmpty() ? "N/A" : isbn);
+            StringBuilder out = new StringBuilder();
+            Lock lock = circulation.lockCatalog();
+            try {
+                if (model.rowOf(b.isbn) < 0) {
+                    model.insert(b);
+                    log.add(b);
+                    book(out, b);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (out.length() == 0) { error(ex, 409, "Another book uses ISBN " + b.isbn); return; }
+            snapshotIfDue();
+            send(ex, 201, out);
+        }
+
+        private void borrow(HttpExchange ex, String isbn, String borrower) throws IOException {
+            if (borrower == null || borrower.trim().isEmpty()) { error(ex, 400, "borrower is required"); return; }
+            switch (circulation.borrow(isbn, borrower.trim(), System.currentTimeMillis())) {
+                case BORROWED: lookup(ex, isbn); break;
+                case ALREADY_BORROWED: error(ex, 409, "Already borrowed"); break;
+                case LIMIT_REACHED: error(ex, 409, borrower.trim() + " already has " + Circulation.LOAN_LIMIT + " books out"); break;
+                default: error(ex, 404, "No book with ISBN " + isbn);
+            }
+        }
+
+        private void giveBack(HttpExchange ex, String isbn) throws IOException {
+            switch (circulation.giveBack(isbn)) {
+                case RETURNED: lookup(ex, isbn); break;
+                case NOT_BORROWED: error(ex, 409, "Not borrowed"); break;
+                default: error(ex, 404, "No book with ISBN " + isbn);
+            }
+        }
+
+        // Loans are read from Circulation, which desks update before the model catches up.
+        private void book(StringBuilder out, Book b) {
+            out.append("{\"title\":");
+            json(out, b.title).append(",\"author\":");
+            json(out, b.author).append(",\"isbn\":");
+            json(out, b.isbn);
+            Circulation.Loan loan = circulation.loanOf(b.isbn);
+            if (loan == null) {
+                out.append(",\"status\":\"available\"}");
+            } else {
+                out.append(",\"status\":\"borrowed\",\"borrower\":");
+                json(out, loan.borrower).append(",\"borrowedOn\":").append(loan.on).append(",\"due\":").append(loan.due).append('}');
+            }
+        }
+
+        // Same as the desk: a new log and a snapshot written in the background once the log is big.
+        private void snapshotIfDue() {
+            if (!log.needsSnapshot() || !snapshotting.compareAndSet(false, true)) return;
+            try {
+                List<Book> books;
+                long generation;
+                Lock lock = circulation.lockCatalog();
+                try {
+                    generation = log.rotate();
+                    books = model.getAllBooks();
+                } finally {
+                    lock.unlock();
+                }
+                Thread t = new Thread(() -> {
+                    try {
+                        log.writeSnapshot(books, generation);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                }, "snapshot");
+                t.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                snapshotting.set(false);
+            }
+        }
+
+        // Path segments after `context`, URL-decoded.
+        private static String[] path(HttpExchange ex, String context) throws UnsupportedEncodingException {
+            String rest = ex.getRequestURI().getRawPath().substring(context.length());
+            List<String> parts = new ArrayList<>();
+            for (String p : rest.split("/")) if (!p.isEmpty()) parts.add(URLDecoder.decode(p, "UTF-8"));
+            return parts.toArray(new String[0]);
+        }
+
+        // Query parameters, plus form fields of a POST body.
+        private static Map<String, String> params(HttpExchange ex) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            parse(ex.getRequestURI().getRawQuery(), params);
+            if (ex.getRequestMethod().equals("POST")) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                try (InputStream in = ex.getRequestBody()) {
+                    for (int n; (n = in.read(buf)) > 0; ) body.write(buf, 0, n);
+                }
+                parse(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+            }
+            return params;
+        }
+
+        private static void parse(String form, Map<String, String> into) throws UnsupportedEncodingException {
+            if (form == null || form.isEmpty()) return;
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) continue;
+                into.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+
+        private static void error(HttpExchange ex, int status, String message) throws IOException {
+            send(ex, status, json(new StringBuilder("{\"error\":"), message).append('}'));
+        }
+
+        private static void send(HttpExchange ex, int status, CharSequence json) throws IOException {
+            byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.sendResponseHeaders(status, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        static StringBuilder json(StringBuilder out, String s) {
+            out.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') out.append('\\').append(c);
+                else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+            return out.append('"');
+        }
+    }
+
+    // Hammers a running service with ISBN lookups from many concurrent clients, each on a
+    // virtual thread where the JDK has them, and prints throughput and latency.
+    static final class LoadTest {
+        private static final Pattern ISBN = Pattern.compile("\"isbn\":\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+        static void run(String base, int clients, int seconds) throws Exception {
+            // keep one connection per client alive rather than the default five
+            System.setProperty("http.maxConnections", Integer.toString(clients));
+            List<String> paths = new ArrayList<>();
+            Matcher m = ISBN.matcher(fetch(new URL(base + "/books?limit=" + LibraryService.MAX_RESULTS)));
+            while (m.find()) paths.add("/books/" + URLEncoder.encode(m.group(1).replace("\\\"", "\"").replace("\\\\", "\\"), "UTF-8"));
+            if (paths.isEmpty()) {
+                System.out.println("The catalog at " + base + " is empty, nothing to look up");
+                return;
+            }
+            System.out.printf("%d clients looking up %d books at %s for %d s%n", clients, paths.size(), base, seconds);
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong errors = new AtomicLong();
+            long start = System.nanoTime(), end = start + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService threads = LibraryService.threadPerTask("load-test", clients);
+            for (int c = 0; c < clients; c++) {
+                long seed = c;
+                threads.execute(() -> {
+                    Random random = new Random(seed);
+                    byte[] buf = new byte[4096];
+                    while (System.nanoTime() < end) {
+                        long t = System.nanoTime();
+                        try {
+                            HttpURLConnection conn = (HttpURLConnection) new URL(base + paths.get(random.nextInt(paths.size()))).openConnection();
+                            int status = conn.getResponseCode();
+                            try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                                while (in != null && in.read(buf) >= 0) { }
+                            }
+                            if (status != 200) errors.incrementAndGet();
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latency.record((System.nanoTime() - t) / 1000);
+                    }
+                });
+            }
+            threads.shutdown();
+            threads.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%,d requests in %.1f s: %,.0f/s, %,d errors%n", latency.count(), secs, latency.count() / secs, errors.get());
+            System.out.printf("latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n", latency.percentile(50) / 1000.0,
+                    latency.percentile(99) / 1000.0, latency.percentile(99.9) / 1000.0, latency.max() / 1000.0);
+        }
+
+        private static String fetch(URL url) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            try (InputStream in = conn.getInputStream()) {
+                for (int n; (n = in.read(buf)) > 0; ) body.write(buf, 0, n);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // ---------- Metrics ----------
+    // Every library operation counts its calls and failures and keeps a latency histogram,
+    // published over JMX as library:type=Operation,name=<operation> for jconsole, VisualVM
+    // or any JMX client. Flight recordings get a Library category with an event for each
+    // load, fsync, snapshot, import and export, and one for each search.
+    public interface OperationMXBean {
+        long getCount();
+        long getErrors();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP99Millis();
+        double getMaxMillis();
+        void reset();
+    }
+
+    static final class Operation implements OperationMXBean {
+        static final Operation LOAD = register("load"), SAVE = register("save"), FSYNC = register("fsync"),
+                SNAPSHOT = register("snapshot"), SEARCH = register("search"), IMPORT = register("import"),
+                EXPORT = register("export"), BORROW = register("borrow"), RETURN = register("return"), HTTP = register("http");
+
+        // try (Operation.Timing timing = Operation.LOAD.start()) { ...; timing.ok(); }
+        // counts a failure unless ok() was reached
+        final class Timing implements AutoCloseable {
+            private final long start = System.nanoTime();
+            private boolean ok, discarded;
+
+            void ok() { ok = true; }
+            // neither a success nor an error, e.g. work given up for newer work
+            void discard() { discarded = true; }
+
+            public void close() {
+                if (discarded) return;
+                latency.record((System.nanoTime() - start) / 1000);
+                if (!ok) errors.incrementAndGet();
+            }
+        }
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        private static Operation register(String name) {
+            Operation op = new Operation();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(op, new ObjectName("library:type=Operation,name=" + name));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            return op;
+        }
+
+        Timing start() { return new Timing(); }
+
+        public long getCount() { return latency.count(); }
+        public long getErrors() { return errors.get(); }
+        public double getMeanMillis() { return latency.mean() / 1000; }
+        public double getP50Millis() { return latency.percentile(50) / 1000.0; }
+        public double getP99Millis() { return latency.percentile(99) / 1000.0; }
+        public double getMaxMillis() { return latency.max() / 1000.0; }
+
+        public void reset() {
+            latency.reset();
+            errors.set(0);
+        }
+    }
+
+    // Latencies in microseconds, bucketed by power of two with eight steps each, so a
+    // percentile is off by at most an eighth and recording one is a single increment.
+    static final class LatencyHistogram {
+        private final AtomicLongArray counts = new AtomicLongArray(64 * 8);
+        private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+        void record(long micros) {
+            counts.incrementAndGet(bucket(Math.max(0, micros)));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            for (long m; micros > (m = max.get()) && !max.compareAndSet(m, micros); ) { }
+        }
+
+        long count() { return count.get(); }
+        long max() { return max.get(); }
+        double mean() { long n = count.get(); return n == 0 ? 0 : (double) sum.get() / n; }
+
+        // not atomic: a latency recorded meanwhile may be half counted
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        // upper end of the bucket holding the p-th percentile, 0 <= p <= 100
+        long percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            long rank = (long) Math.ceil(total * p / 100), seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) return Math.min(upper(i), max.get());
+            }
+            return 0;
+        }
+
+        private static int bucket(long v) {
+            if (v < 8) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - 2) * 8 + (int) ((v >>> (exp - 3)) & 7);
+        }
+
+        private static long upper(int bucket) {
+            if (bucket < 8) return bucket;
+            int exp = bucket / 8 + 2;
+            return ((8L + bucket % 8 + 1) << (exp - 3)) - 1;
+        }
+    }
+
+    @Name("library.Persistence")
+    @Label("Library Persistence")
+    @Category("Library")
+    @Description("Catalog loaded, log synced, snapshot written, CSV imported or exported")
+    static final class PersistenceEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("File") String file;
+        @Label("Books") long books;
+        @Label("Size") @DataAmount long bytes;
+
+        static PersistenceEvent start(String operation) {
+            PersistenceEvent event = new PersistenceEvent();
+            event.operation = operation;
+            event.begin();
+            return event;
+        }
+
+        void finish(File file, long books, long bytes) {
+            end();
+            if (!shouldCommit()) return;
+            this.file = file == null ? null : file.getPath();
+            this.books = books;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    @Name("library.Search")
+    @Label("Library Search")
+    @Category("Library")
+    @Description("A catalog search, from the desk's search box or the HTTP service")
+    static final class SearchEvent extends Event {
+        @Label("Query") String query;
+        @Label("Results") int results;
+        @Label("Superseded") @Description("Given up for a newer query") boolean superseded;
+
+        static SearchEvent start() {
+            SearchEvent event = new SearchEvent();
+            event.begin();
+            return event;
+        }
+
+        // results < 0 for a superseded search
+        void finish(String query, int results) {
+            end();
+            if (!shouldCommit()) return;
+            this.query = query;
+            this.results = Math.max(results, 0);
+            this.superseded = results < 0;
+            commit();
+        }
     }
 
     // ---------- Book Dialog ----------
@@ -347,7 +3455,7 @@ public class LibraryManagementAppEnhanced extends JFrame {
             Result(String t, String a, String i) { title = t; author = a; isbn = i; }
         }
 
-        static Result showDialog(Component parent, Book existing, Set<String> blockedIsbns) {
+        static Result showDialog(Component parent, Book existing, Predicate<String> isbnTaken) {
             JPanel p = new JPanel(new GridBagLayout());
             p.setBorder(new EmptyBorder(10, 10, 10, 10));
             GridBagConstraints gbc = new GridBagConstraints();
@@ -389,7 +3497,7 @@ public class LibraryManagementAppEnhanced extends JFrame {
                 if (title.isEmpty()) { JOptionPane.showMessageDialog(parent, "Title is required."); continue; }
                 if (author.isEmpty()) { JOptionPane.showMessageDialog(parent, "Author is required."); continue; }
                 if (isbn.isEmpty()) { isbn = "N/A"; } // allow missing ISBN but mark N/A
-                if (blockedIsbns != null && blockedIsbns.contains(isbn)) {
+                if (isbnTaken != null && isbnTaken.test(isbn)) {
                     JOptionPane.showMessageDialog(parent, "ISBN must be unique. Another book uses this ISBN."); continue;
                 }
                 return new Result(title, author, isbn);
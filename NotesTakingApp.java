@@ -1,17 +1,58 @@
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class NotesTakingApp extends JFrame {
-    private DefaultListModel<String> notesModel = new DefaultListModel<>();
+    private static final long LARGE_NOTE_BYTES = 512 * 1024;
+    private TitleListModel notesModel = new TitleListModel();
     private JList<String> notesList = new JList<>(notesModel);
     private JTextArea noteArea = new JTextArea();
     private JTextField searchField = new JTextField();
+    private JLabel saveState = new JLabel(" ");
+    private DefaultListModel<String> resultsModel = new DefaultListModel<>();
+    private JList<String> resultsList = new JList<>(resultsModel);
+    private JLabel searchInfo = new JLabel(" ");
     private File notesFile = new File("notes_data.txt");
+    private NoteStore store = new NoteStore(notesFile, Boolean.getBoolean("notes.compress"));
+    private NoteIndex noteIndex = new NoteIndex();
+    private NoteWriter writer = new NoteWriter(store, s -> SwingUtilities.invokeLater(() -> showSaveState(s)));
+    private javax.swing.Timer autosave = new javax.swing.Timer(700, e -> saveNotes());
+    private javax.swing.Timer searchDelay = new javax.swing.Timer(150, e -> searchNote());
+    private String currentTitle;
+    private boolean dirty;
+    private PieceTable largeDoc;
+    private boolean loaded;
+    private final Map<String, Integer> indexVersions = new HashMap<>();
+    private int indexSeq;
+    private final DocumentListener editListener = new DocumentListener() {
+        public void insertUpdate(DocumentEvent e) { edited(); }
+        public void removeUpdate(DocumentEvent e) { edited(); }
+        public void changedUpdate(DocumentEvent e) { }
+    };
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new NotesTakingApp().setVisible(true));
@@ -26,11 +67,18 @@ public class NotesTakingApp extends JFrame {
         UIManager.put("Label.font", new Font("Segoe UI", Font.BOLD, 13));
         initUI();
         loadNotes();
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                flushOnExit();
+            }
+        });
     }
 
     private void initUI() {
         getContentPane().setBackground(new Color(240, 247, 255));
         notesList.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        // fixed row size so the list never measures every title, only the rows on screen
+        notesList.setPrototypeCellValue("A reasonably long note title");
         noteArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         noteArea.setBorder(new EmptyBorder(8, 8, 8, 8));
 
@@ -48,11 +96,13 @@ public class NotesTakingApp extends JFrame {
         JButton addBtn = styledButton("➕ New");
         JButton deleteBtn = styledButton("🗑 Delete");
         JButton saveBtn = styledButton("💾 Save");
-        JPanel btnPanel = new JPanel(new GridLayout(1, 3, 10, 0));
+        JButton historyBtn = styledButton("🕘 History");
+        JPanel btnPanel = new JPanel(new GridLayout(2, 2, 10, 10));
         btnPanel.setBackground(new Color(240, 247, 255));
         btnPanel.add(addBtn);
         btnPanel.add(deleteBtn);
         btnPanel.add(saveBtn);
+        btnPanel.add(historyBtn);
         leftPanel.add(btnPanel, BorderLayout.SOUTH);
 
         JPanel rightPanel = new JPanel(new BorderLayout(10, 10));
@@ -60,7 +110,13 @@ public class NotesTakingApp extends JFrame {
         rightPanel.setBackground(Color.WHITE);
         JLabel editorLbl = new JLabel("Note Editor");
         editorLbl.setFont(new Font("Segoe UI Semibold", Font.BOLD, 16));
-        rightPanel.add(editorLbl, BorderLayout.NORTH);
+        saveState.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        saveState.setForeground(new Color(110, 120, 140));
+        JPanel editorHeader = new JPanel(new BorderLayout());
+        editorHeader.setBackground(Color.WHITE);
+        editorHeader.add(editorLbl, BorderLayout.WEST);
+        editorHeader.add(saveState, BorderLayout.EAST);
+        rightPanel.add(editorHeader, BorderLayout.NORTH);
         noteArea.setWrapStyleWord(true);
         noteArea.setLineWrap(true);
         JScrollPane scroll = new JScrollPane(noteArea);
@@ -71,6 +127,13 @@ public class NotesTakingApp extends JFrame {
         searchPanel.setBackground(Color.WHITE);
         searchPanel.add(new JLabel("🔍 Search:"), BorderLayout.WEST);
         searchPanel.add(searchField, BorderLayout.CENTER);
+        resultsList.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        resultsList.setVisibleRowCount(5);
+        JPanel resultsPanel = new JPanel(new BorderLayout(5, 5));
+        resultsPanel.setBackground(Color.WHITE);
+        resultsPanel.add(searchInfo, BorderLayout.NORTH);
+        resultsPanel.add(new JScrollPane(resultsList), BorderLayout.CENTER);
+        searchPanel.add(resultsPanel, BorderLayout.SOUTH);
         rightPanel.add(searchPanel, BorderLayout.SOUTH);
 
         JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftPanel, rightPanel);
@@ -81,16 +144,29 @@ public class NotesTakingApp extends JFrame {
         addBtn.addActionListener(e -> addNote());
         deleteBtn.addActionListener(e -> deleteNote());
         saveBtn.addActionListener(e -> saveNotes());
+        historyBtn.addActionListener(e -> showHistory());
         notesList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
                 String selected = notesList.getSelectedValue();
-                if (selected != null) loadNoteContent(selected);
+                if (selected != null && !selected.equals(currentTitle)) loadNoteContent(selected);
             }
         });
-        searchField.addKeyListener(new KeyAdapter() {
-            public void keyReleased(KeyEvent e) {
-                searchNote();
-            }
+        autosave.setRepeats(false);
+        noteArea.getDocument().addDocumentListener(editListener);
+        // searches once typing pauses, and only when the text changed
+        searchDelay.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        searchField.addActionListener(e -> {
+            if (searchDelay.isRunning()) searchNote();
+            if (!resultsModel.isEmpty()) notesList.setSelectedValue(resultsModel.get(0), true);
+        });
+        resultsList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && resultsList.getSelectedValue() != null)
+                notesList.setSelectedValue(resultsList.getSelectedValue(), true);
         });
     }
 
@@ -107,6 +183,7 @@ public class NotesTakingApp extends JFrame {
     // -------- Core Functionalities --------
 
     private void addNote() {
+        if (!loaded) return;
         String name = JOptionPane.showInputDialog(this, "Enter note title:");
         if (name == null || name.trim().isEmpty()) {
             JOptionPane.showMessageDialog(this, "Title cannot be empty!");
@@ -116,13 +193,14 @@ public class NotesTakingApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Note with same title already exists!");
             return;
         }
-        notesModel.addElement(name.trim());
-        noteArea.setText("");
-        notesList.setSelectedIndex(notesModel.size() - 1);
+        notesModel.add(name.trim());
+        notesList.setSelectedIndex(notesModel.getSize() - 1);
+        setEditorText("");
         saveNotes();
     }
 
     private void deleteNote() {
+        if (!loaded) return;
         int idx = notesList.getSelectedIndex();
         if (idx == -1) {
             JOptionPane.showMessageDialog(this, "Please select a note to delete.");
@@ -131,84 +209,2439 @@ public class NotesTakingApp extends JFrame {
         int confirm = JOptionPane.showConfirmDialog(this,
                 "Are you sure you want to delete this note?", "Confirm", JOptionPane.YES_NO_OPTION);
         if (confirm == JOptionPane.YES_OPTION) {
-            notesModel.remove(idx);
-            noteArea.setText("");
-            saveNotes();
+            autosave.stop();
+            dirty = false;
+            currentTitle = null;
+            String title = notesModel.remove(idx);
+            notesList.clearSelection();
+            setEditorText("");
+            writer.delete(title);
+            indexVersions.put(title, ++indexSeq);
+            noteIndex.remove(title);
         }
     }
 
     private void searchNote() {
-        String text = searchField.getText().trim().toLowerCase();
-        if (text.isEmpty()) return;
-        boolean found = false;
-        for (int i = 0; i < notesModel.size(); i++) {
-            if (notesModel.get(i).toLowerCase().contains(text)) {
-                notesList.setSelectedIndex(i);
-                found = true;
-                break;
-            }
+        searchDelay.stop();
+        String text = searchField.getText().trim();
+        resultsModel.clear();
+        if (text.isEmpty()) {
+            searchInfo.setText(" ");
+            return;
         }
-        if (!found) {
-            JOptionPane.showMessageDialog(this, "Note not found!", "Search Result",
-                    JOptionPane.INFORMATION_MESSAGE);
-            notesList.clearSelection();
+        long start = System.nanoTime();
+        // titles completing the query first, then titles a typo or two away, then body matches
+        Set<String> hits = new LinkedHashSet<>();
+        notesModel.trie.complete(text, 200, hits);
+        int edits = text.length() < 4 ? 0 : text.length() < 8 ? 1 : 2;
+        if (edits > 0) notesModel.trie.fuzzy(text, edits, 200, hits);
+        for (String hit : noteIndex.search(text, 200)) {
+            if (hits.size() >= 200) break;
+            hits.add(hit);
         }
+        long micros = (System.nanoTime() - start) / 1000;
+        for (String hit : hits) resultsModel.addElement(hit);
+        if (hits.isEmpty()) searchInfo.setText("Note not found!");
+        else searchInfo.setText(String.format("%d matching notes (%.2f ms)", hits.size(), micros / 1000.0));
     }
 
+    // Hands the editor text to the background writer; the EDT never touches the disk.
     private void saveNotes() {
-        try (PrintWriter out = new PrintWriter(new FileWriter(notesFile))) {
-            for (int i = 0; i < notesModel.size(); i++) {
-                String title = notesModel.get(i);
-                out.println("###" + title);
-                if (notesList.getSelectedValue() != null &&
-                        notesList.getSelectedValue().equals(title)) {
-                    out.println(noteArea.getText());
-                } else {
-                    out.println(readNoteContent(title));
+        autosave.stop();
+        dirty = false;
+        if (currentTitle == null) return;
+        if (largeDoc != null) {
+            // only the changed pieces are written; the index is rebuilt for the note off the EDT
+            Patch patch = largeDoc.patch();
+            writer.patch(currentTitle, patch);
+            indexLater(currentTitle, patch);
+            return;
+        }
+        String body = noteArea.getText();
+        writer.put(currentTitle, body);
+        indexVersions.put(currentTitle, ++indexSeq);
+        noteIndex.put(currentTitle, NoteIndex.analyze(currentTitle, body));
+    }
+
+    // Lists the saved versions of the open note, newest first, and puts the chosen one back
+    // in the editor; restoring is itself saved as a new version.
+    private void showHistory() {
+        if (currentTitle == null) {
+            JOptionPane.showMessageDialog(this, "Please select a note first.");
+            return;
+        }
+        String title = currentTitle;
+        List<Revision> revisions;
+        try {
+            revisions = store.history(title);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not read the history: " + e.getMessage());
+            return;
+        }
+        if (revisions.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No earlier versions of this note yet.");
+            return;
+        }
+        Collections.reverse(revisions);
+        JList<Revision> versions = new JList<>(revisions.toArray(new Revision[0]));
+        versions.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        JTextArea preview = new JTextArea();
+        preview.setEditable(false);
+        preview.setLineWrap(true);
+        preview.setWrapStyleWord(true);
+        preview.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        JButton restoreBtn = styledButton("↩ Restore");
+        restoreBtn.setEnabled(false);
+        String[] chosen = new String[1];
+        versions.addListSelectionListener(e -> {
+            if (e.getValueIsAdjusting() || versions.getSelectedValue() == null) return;
+            try {
+                chosen[0] = store.revision(title, versions.getSelectedValue().index);
+                preview.setText(chosen[0]);
+            } catch (IOException ex) {
+                chosen[0] = null;
+                preview.setText("This version can't be shown: " + ex.getMessage());
+            }
+            preview.setCaretPosition(0);
+            restoreBtn.setEnabled(chosen[0] != null);
+        });
+
+        JDialog dialog = new JDialog(this, "History of " + title, true);
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
+                new JScrollPane(versions), new JScrollPane(preview));
+        split.setDividerLocation(320);
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        south.add(restoreBtn);
+        dialog.add(split, BorderLayout.CENTER);
+        dialog.add(south, BorderLayout.SOUTH);
+        restoreBtn.addActionListener(e -> {
+            dialog.dispose();
+            if (!title.equals(currentTitle) || chosen[0] == null) return;
+            setEditorText(chosen[0]);
+            dirty = true;
+            saveNotes();
+        });
+        versions.setSelectedIndex(0);
+        dialog.setSize(800, 480);
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+    }
+
+    private void indexLater(String title, Patch patch) {
+        int version = ++indexSeq;
+        indexVersions.put(title, version);
+        patch.retain();
+        new SwingWorker<Map<String, Integer>, Void>() {
+            protected Map<String, Integer> doInBackground() throws Exception {
+                try {
+                    return NoteIndex.analyze(title, new String(patch.materialize(), StandardCharsets.UTF_8));
+                } finally {
+                    patch.release();
                 }
-                out.println("$$$");
             }
+
+            protected void done() {
+                try {
+                    if (indexVersions.get(title) == version) noteIndex.put(title, get());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
+    private void edited() {
+        if (currentTitle == null) return;
+        dirty = true;
+        showSaveState("Unsaved changes");
+        autosave.restart();
+    }
+
+    private void showSaveState(String state) {
+        saveState.setText(dirty && state.equals("Saved") ? "Unsaved changes" : state);
+        String storage = store.storageStats();
+        saveState.setToolTipText(store.cacheStats() + (storage == null ? "" : ", " + storage));
+    }
+
+    private void flushOnExit() {
+        if (dirty) saveNotes();
+        try {
+            writer.close();
+            store.close();
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error saving notes!");
+            e.printStackTrace();
         }
     }
 
+    // Opens the store off the EDT. Titles show up a page at a time while the snapshot is
+    // scanned; notes can't be opened or changed until the journal has been replayed too.
     private void loadNotes() {
-        if (!notesFile.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(notesFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith("###")) {
-                    notesModel.addElement(line.substring(3));
+        long start = System.nanoTime();
+        noteArea.setEditable(false);
+        saveState.setText("Loading notes…");
+        new SwingWorker<List<String>, List<String>>() {
+            protected List<String> doInBackground() throws Exception {
+                return store.open(this::publish);
+            }
+
+            protected void process(List<List<String>> pages) {
+                for (List<String> page : pages) notesModel.addAll(page);
+                saveState.setText("Loading notes… " + notesModel.getSize());
+            }
+
+            protected void done() {
+                List<String> titles;
+                try {
+                    titles = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    saveState.setText("Could not load notes");
+                    return;
+                }
+                String selected = notesList.getSelectedValue();
+                notesModel.sync(titles);
+                if (selected != null) notesList.setSelectedValue(selected, true);
+                loaded = true;
+                noteArea.setEditable(true);
+                String storage = store.storageStats();
+                saveState.setText(String.format("%d notes loaded in %d ms", titles.size(),
+                        (System.nanoTime() - start) / 1000000) + (storage == null ? "" : ", " + storage));
+                String recovery = store.recovery();
+                if (recovery != null) {
+                    JOptionPane.showMessageDialog(NotesTakingApp.this,
+                            "Notes were recovered after an unclean shutdown: " + recovery + ".");
                 }
+                selected = notesList.getSelectedValue();
+                if (selected != null) loadNoteContent(selected);
+                buildSearchIndex(titles);
+            }
+        }.execute();
+    }
+
+    // Reads and tokenizes every note off the EDT; the index itself is only touched on the EDT,
+    // and notes edited or deleted in the meantime are skipped so newer state always wins.
+    private void buildSearchIndex(List<String> titles) {
+        new SwingWorker<Void, Map.Entry<String, Map<String, Integer>>>() {
+            protected Void doInBackground() throws Exception {
+                for (String title : titles) {
+                    publish(new AbstractMap.SimpleEntry<>(title, NoteIndex.analyze(title, store.readUncached(title))));
+                }
+                return null;
+            }
+
+            protected void process(List<Map.Entry<String, Map<String, Integer>>> docs) {
+                for (Map.Entry<String, Map<String, Integer>> doc : docs) {
+                    if (!noteIndex.knows(doc.getKey())) noteIndex.put(doc.getKey(), doc.getValue());
+                }
+            }
+
+            protected void done() {
+                if (!searchField.getText().trim().isEmpty()) searchNote();
+            }
+        }.execute();
+    }
+
+    private void loadNoteContent(String title) {
+        if (!loaded) return;
+        if (dirty) saveNotes();
+        currentTitle = title;
+        if (writer.pending(title) == null && store.bodyBytes(title) >= LARGE_NOTE_BYTES) {
+            try {
+                PieceTable content = new PieceTable(new ChunkedText(store.openSource(title)));
+                showDocument(new PlainDocument(content), content);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        setEditorText(readNoteContent(title));
+    }
+
+    private void setEditorText(String text) {
+        PlainDocument doc = new PlainDocument();
+        try {
+            doc.insertString(0, text, null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        showDocument(doc, null);
+    }
+
+    // Swaps the editor onto a new document; large notes get a piece-table document and no
+    // line wrapping, since wrapped layout has to measure every line of the note.
+    private void showDocument(PlainDocument doc, PieceTable content) {
+        noteArea.getDocument().removeDocumentListener(editListener);
+        if (largeDoc != null) largeDoc.close();
+        largeDoc = content;
+        noteArea.setLineWrap(content == null);
+        noteArea.setDocument(doc);
+        noteArea.setCaretPosition(0);
+        doc.addDocumentListener(editListener);
+    }
+
+    private String readNoteContent(String title) {
+        Edit pending = writer.pending(title);
+        if (pending != null) {
+            try {
+                return pending.text().trim();
+            } catch (IOException e) {
+                // its source was closed because the writer just stored it; read the store instead
             }
+        }
+        try {
+            return store.read(title);
         } catch (IOException e) {
             e.printStackTrace();
+            return "";
         }
     }
 
-    private void loadNoteContent(String title) {
-        noteArea.setText(readNoteContent(title));
+    // -------- Note List --------
+
+    // Rows are served straight from the title list, which the JList only asks for the rows it
+    // paints; a hash set next to it answers duplicate-title checks without scanning the list.
+    static class TitleListModel extends AbstractListModel<String> {
+        private final List<String> titles = new ArrayList<>();
+        private final Set<String> known = new HashSet<>();
+        final TitleTrie trie = new TitleTrie();
+
+        public int getSize() { return titles.size(); }
+
+        public String getElementAt(int i) { return titles.get(i); }
+
+        boolean contains(String title) { return known.contains(title); }
+
+        void add(String title) {
+            addAll(Collections.singletonList(title));
+        }
+
+        void addAll(List<String> page) {
+            int first = titles.size();
+            for (String title : page) {
+                if (known.add(title)) {
+                    titles.add(title);
+                    trie.add(title);
+                }
+            }
+            if (titles.size() > first) fireIntervalAdded(this, first, titles.size() - 1);
+        }
+
+        String remove(int i) {
+            String title = titles.remove(i);
+            known.remove(title);
+            trie.remove(title);
+            fireIntervalRemoved(this, i, i);
+            return title;
+        }
+
+        // Brings the list in line with `all`. Usually the rows shown so far are a prefix of it
+        // and only the rest is appended; otherwise the list is rebuilt.
+        void sync(List<String> all) {
+            boolean prefix = titles.size() <= all.size();
+            for (int i = 0; prefix && i < titles.size(); i++) prefix = titles.get(i).equals(all.get(i));
+            if (prefix) {
+                addAll(all.subList(titles.size(), all.size()));
+                return;
+            }
+            int old = titles.size();
+            for (String title : titles) trie.remove(title);
+            titles.clear();
+            known.clear();
+            fireIntervalRemoved(this, 0, old - 1);
+            addAll(all);
+        }
     }
 
-    private String readNoteContent(String title) {
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(notesFile))) {
-            String line;
-            boolean found = false;
-            while ((line = br.readLine()) != null) {
-                if (line.equals("###" + title)) {
-                    found = true;
+    // Radix trie over lower-cased titles for typeahead: prefix completion, and fuzzy matches
+    // whose beginning is within a few edits of the query. Only branch points get a node.
+    static class TitleTrie {
+        private static final Node[] NONE = new Node[0];
+
+        static final class Node {
+            String label;
+            Node[] children = NONE; // sorted by the first char of their label
+            List<String> titles;
+            Node(String label) { this.label = label; }
+        }
+
+        private final Node root = new Node("");
+
+        void add(String title) {
+            String key = key(title);
+            Node node = root;
+            int i = 0;
+            while (i < key.length()) {
+                int c = find(node, key.charAt(i));
+                if (c < 0) {
+                    Node leaf = new Node(key.substring(i));
+                    node.children = insert(node.children, -c - 1, leaf);
+                    node = leaf;
+                    break;
+                }
+                Node child = node.children[c];
+                int common = common(child.label, key, i);
+                if (common < child.label.length()) {
+                    // the key leaves this edge part way: split it there
+                    Node mid = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    mid.children = new Node[] {child};
+                    node.children[c] = mid;
+                    child = mid;
+                }
+                node = child;
+                i += common;
+            }
+            if (node.titles == null) node.titles = new ArrayList<>(1);
+            node.titles.add(title);
+        }
+
+        void remove(String title) {
+            String key = key(title);
+            List<Node> path = new ArrayList<>();
+            Node node = root;
+            path.add(node);
+            for (int i = 0; i < key.length(); ) {
+                int c = find(node, key.charAt(i));
+                if (c < 0 || !key.startsWith(node.children[c].label, i)) return;
+                node = node.children[c];
+                i += node.label.length();
+                path.add(node);
+            }
+            if (node.titles == null || !node.titles.remove(title)) return;
+            if (node.titles.isEmpty()) node.titles = null;
+            // drop emptied leaves, then fold a node left with one child into that child
+            for (int p = path.size() - 1; p > 0; p--) {
+                Node n = path.get(p), parent = path.get(p - 1);
+                if (n.titles != null) break;
+                int at = find(parent, n.label.charAt(0));
+                if (n.children.length == 0) {
+                    Node[] rest = new Node[parent.children.length - 1];
+                    System.arraycopy(parent.children, 0, rest, 0, at);
+                    System.arraycopy(parent.children, at + 1, rest, at, rest.length - at);
+                    parent.children = rest;
                     continue;
                 }
-                if (found) {
-                    if (line.equals("$$$")) break;
-                    content.append(line).append("\n");
+                if (n.children.length == 1) {
+                    Node only = n.children[0];
+                    only.label = n.label + only.label;
+                    parent.children[at] = only;
                 }
+                break;
+            }
+        }
+
+        // Adds titles starting with `prefix` (ignoring case) until `out` holds `limit`.
+        void complete(String prefix, int limit, Collection<String> out) {
+            String key = key(prefix);
+            Node node = root;
+            for (int i = 0; i < key.length(); ) {
+                int c = find(node, key.charAt(i));
+                if (c < 0) return;
+                Node child = node.children[c];
+                int common = common(child.label, key, i);
+                if (common < child.label.length() && i + common < key.length()) return;
+                node = child;
+                i += common;
+            }
+            collect(node, limit, out);
+        }
+
+        // Adds titles that begin with something at most `maxEdits` insertions, deletions,
+        // substitutions or swapped neighbours away from `query`. Walks the trie with one
+        // edit-distance row per char and abandons a branch once its whole row is over the bound.
+        void fuzzy(String query, int maxEdits, int limit, Collection<String> out) {
+            String q = key(query);
+            if (q.length() <= maxEdits) return;
+            int[] row = new int[q.length() + 1];
+            for (int j = 0; j < row.length; j++) row[j] = j;
+            fuzzy(root, q, null, row, (char) 0, maxEdits, limit, out);
+        }
+
+        private void fuzzy(Node node, String q, int[] before, int[] row, char last, int maxEdits,
+                           int limit, Collection<String> out) {
+            for (Node child : node.children) {
+                if (out.size() >= limit) return;
+                int[] pr = before, r = row;
+                char pc = last;
+                boolean settled = false;
+                for (int p = 0; p < child.label.length() && !settled; p++) {
+                    char ch = child.label.charAt(p);
+                    int[] next = new int[r.length];
+                    next[0] = r[0] + 1;
+                    int min = next[0];
+                    for (int j = 1; j < r.length; j++) {
+                        int cost = q.charAt(j - 1) == ch ? 0 : 1;
+                        next[j] = Math.min(Math.min(next[j - 1] + 1, r[j] + 1), r[j - 1] + cost);
+                        if (pr != null && j > 1 && q.charAt(j - 1) == pc && q.charAt(j - 2) == ch)
+                            next[j] = Math.min(next[j], pr[j - 2] + 1);
+                        min = Math.min(min, next[j]);
+                    }
+                    pr = r;
+                    r = next;
+                    pc = ch;
+                    if (r[q.length()] <= maxEdits) {
+                        collect(child, limit, out);
+                        settled = true;
+                    } else if (min > maxEdits) {
+                        settled = true;
+                    }
+                }
+                if (!settled) fuzzy(child, q, pr, r, pc, maxEdits, limit, out);
+            }
+        }
+
+        private static void collect(Node node, int limit, Collection<String> out) {
+            if (node.titles != null) {
+                for (String title : node.titles) {
+                    if (out.size() >= limit) return;
+                    out.add(title);
+                }
+            }
+            for (Node child : node.children) {
+                if (out.size() >= limit) return;
+                collect(child, limit, out);
+            }
+        }
+
+        private static int find(Node node, char c) {
+            int lo = 0, hi = node.children.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = node.children[mid].label.charAt(0);
+                if (m < c) lo = mid + 1;
+                else if (m > c) hi = mid - 1;
+                else return mid;
+            }
+            return -lo - 1;
+        }
+
+        private static Node[] insert(Node[] nodes, int at, Node node) {
+            Node[] grown = new Node[nodes.length + 1];
+            System.arraycopy(nodes, 0, grown, 0, at);
+            grown[at] = node;
+            System.arraycopy(nodes, at, grown, at + 1, nodes.length - at);
+            return grown;
+        }
+
+        private static int common(String label, String key, int from) {
+            int n = Math.min(label.length(), key.length() - from), i = 0;
+            while (i < n && label.charAt(i) == key.charAt(from + i)) i++;
+            return i;
+        }
+
+        private static String key(String title) { return title.toLowerCase(Locale.ROOT); }
+    }
+
+    // -------- Search Index --------
+
+    // Inverted index: term -> (note id -> weighted term frequency). Terms are kept sorted
+    // so a query word can match the terms it prefixes. Confined to the EDT.
+    static class NoteIndex {
+        private static final int TITLE_WEIGHT = 5;
+        // a word this long or longer also matches up to MAX_EXPANSION terms it prefixes
+        private static final int MIN_PREFIX = 2, MAX_EXPANSION = 64;
+        private final TreeMap<String, Map<Integer, Integer>> postings = new TreeMap<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> titles = new ArrayList<>();
+        private final List<String[]> docTerms = new ArrayList<>();
+        private final Deque<Integer> freeIds = new ArrayDeque<>();
+        private final Set<String> removed = new HashSet<>();
+
+        static Map<String, Integer> analyze(String title, String body) {
+            Map<String, Integer> tf = new HashMap<>();
+            for (String t : tokenize(body)) tf.merge(t, 1, Integer::sum);
+            for (String t : tokenize(title)) tf.merge(t, TITLE_WEIGHT, Integer::sum);
+            return tf;
+        }
+
+        static List<String> tokenize(String text) {
+            List<String> out = new ArrayList<>();
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (word && start < 0) start = i;
+                else if (!word && start >= 0) {
+                    out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                    start = -1;
+                }
+            }
+            return out;
+        }
+
+        boolean contains(String title) { return ids.containsKey(title); }
+
+        // True once a note has been indexed or deleted, so a stale background read is ignored.
+        boolean knows(String title) { return ids.containsKey(title) || removed.contains(title); }
+
+        void put(String title, Map<String, Integer> tf) {
+            remove(title);
+            removed.remove(title);
+            Integer id = freeIds.poll();
+            if (id == null) {
+                id = titles.size();
+                titles.add(null);
+                docTerms.add(null);
+            }
+            for (Map.Entry<String, Integer> e : tf.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(id, e.getValue());
+            }
+            ids.put(title, id);
+            titles.set(id, title);
+            docTerms.set(id, tf.keySet().toArray(new String[0]));
+        }
+
+        void remove(String title) {
+            removed.add(title);
+            Integer id = ids.remove(title);
+            if (id == null) return;
+            for (String term : docTerms.get(id)) {
+                Map<Integer, Integer> docs = postings.get(term);
+                if (docs == null) continue;
+                docs.remove(id);
+                if (docs.isEmpty()) postings.remove(term);
+            }
+            titles.set(id, null);
+            docTerms.set(id, null);
+            freeIds.push(id);
+        }
+
+        // Every query word must match (as a whole term or a prefix of one); notes are ranked
+        // by tf-idf summed over the matched terms, with prefix matches counting half. Scoring
+        // starts from the word with the fewest postings, and later words only keep or drop
+        // the notes it found, so the work follows the matches rather than the whole index.
+        List<String> search(String query, int limit) {
+            List<Word> words = new ArrayList<>();
+            for (String q : tokenize(query)) {
+                Word word = match(q);
+                if (word.terms.isEmpty()) return new ArrayList<>();
+                words.add(word);
+            }
+            if (words.isEmpty()) return new ArrayList<>();
+            words.sort(Comparator.comparingLong(w -> w.postings));
+            int n = Math.max(1, ids.size());
+            Scores score = null;
+            for (Word word : words) {
+                // later words can only keep notes already found, so the table never grows
+                Scores next = new Scores(score == null ? (int) Math.min(word.postings, titles.size()) : score.size());
+                // few candidates left: look each one up instead of walking the postings
+                boolean probe = score != null && (long) score.size() * word.terms.size() < word.postings;
+                for (Map.Entry<String, Map<Integer, Integer>> e : word.terms) {
+                    Map<Integer, Integer> docs = e.getValue();
+                    double weight = Math.log(1 + (double) n / docs.size())
+                            * (e.getKey().length() == word.text.length() ? 1.0 : 0.5);
+                    if (probe) {
+                        for (int slot = score.next(0); slot >= 0; slot = score.next(slot + 1)) {
+                            Integer tf = docs.get(score.id(slot));
+                            if (tf != null) next.add(score.id(slot), (1 + Math.log(tf)) * weight);
+                        }
+                    } else {
+                        for (Map.Entry<Integer, Integer> d : docs.entrySet()) {
+                            if (score != null && !score.contains(d.getKey())) continue;
+                            next.add(d.getKey(), (1 + Math.log(d.getValue())) * weight);
+                        }
+                    }
+                }
+                if (score != null) {
+                    for (int slot = next.next(0); slot >= 0; slot = next.next(slot + 1)) next.add(next.id(slot), score.get(next.id(slot)));
+                }
+                score = next;
+                if (score.size() == 0) break;
+            }
+            List<String> ranked = new ArrayList<>();
+            for (int id : score.top(limit)) ranked.add(titles.get(id));
+            return ranked;
+        }
+
+        // The terms a query word matches: itself, and once it is MIN_PREFIX long, the first
+        // MAX_EXPANSION terms it prefixes.
+        private Word match(String q) {
+            Word word = new Word(q);
+            if (q.length() < MIN_PREFIX) {
+                Map.Entry<String, Map<Integer, Integer>> e = postings.ceilingEntry(q);
+                if (e != null && e.getKey().equals(q)) word.add(e);
+                return word;
+            }
+            for (Map.Entry<String, Map<Integer, Integer>> e
+                    : postings.subMap(q, true, q + Character.MAX_VALUE, false).entrySet()) {
+                word.add(e);
+                if (word.terms.size() == MAX_EXPANSION) break;
+            }
+            return word;
+        }
+
+        private static final class Word {
+            final String text;
+            final List<Map.Entry<String, Map<Integer, Integer>>> terms = new ArrayList<>();
+            long postings;
+
+            Word(String text) { this.text = text; }
+
+            void add(Map.Entry<String, Map<Integer, Integer>> term) {
+                terms.add(term);
+                postings += term.getValue().size();
+            }
+        }
+
+        // Note id -> score in open addressing over primitive arrays, sized for the candidates
+        // of one query rather than for every note.
+        private static final class Scores {
+            private final int[] keys; // id + 1; 0 is a free slot
+            private final double[] values;
+            private int size;
+
+            // holds up to `expected` ids at most half full
+            Scores(int expected) {
+                int capacity = Integer.highestOneBit(Math.max(2, expected * 2 - 1)) << 1;
+                keys = new int[capacity];
+                values = new double[capacity];
+            }
+
+            int size() { return size; }
+
+            void add(int id, double value) {
+                int slot = slot(id);
+                if (keys[slot] == 0) {
+                    keys[slot] = id + 1;
+                    size++;
+                }
+                values[slot] += value;
+            }
+
+            boolean contains(int id) { return keys[slot(id)] != 0; }
+            double get(int id) { return values[slot(id)]; }
+
+            // the first used slot at or after `from`, or -1
+            int next(int from) {
+                for (int slot = from; slot < keys.length; slot++) if (keys[slot] != 0) return slot;
+                return -1;
+            }
+
+            int id(int slot) { return keys[slot] - 1; }
+
+            // the `limit` best ids, best first
+            List<Integer> top(int limit) {
+                PriorityQueue<Integer> top = new PriorityQueue<>((x, y) -> Double.compare(values[x], values[y]));
+                for (int slot = next(0); slot >= 0; slot = next(slot + 1)) {
+                    if (top.size() == limit && values[slot] <= values[top.peek()]) continue;
+                    top.add(slot);
+                    if (top.size() > limit) top.poll();
+                }
+                List<Integer> best = new ArrayList<>();
+                while (!top.isEmpty()) best.add(id(top.poll()));
+                Collections.reverse(best);
+                return best;
+            }
+
+            private int slot(int id) {
+                int h = id * 0x9E3779B9, mask = keys.length - 1;
+                int slot = (h ^ (h >>> 16)) & mask;
+                while (keys[slot] != 0 && keys[slot] != id + 1) slot = (slot + 1) & mask;
+                return slot;
+            }
+        }
+    }
+
+    // -------- Large Documents --------
+
+    interface ByteSource {
+        long length();
+        byte[] read(long offset, int length) throws IOException;
+        default void retain() { }
+        default void release() { }
+    }
+
+    static final class ArraySource implements ByteSource {
+        private final byte[] bytes;
+        ArraySource(byte[] bytes) { this.bytes = bytes; }
+        public long length() { return bytes.length; }
+        public byte[] read(long offset, int length) { return Arrays.copyOfRange(bytes, (int) offset, (int) offset + length); }
+    }
+
+    // A byte range of a notes file read through its own channel, so it stays valid when a
+    // compaction replaces the file underneath. Reference counted; the last release closes it.
+    static final class FileSource implements ByteSource {
+        private final FileChannel channel;
+        private final long start, length;
+        private int refs = 1;
+
+        FileSource(Path path, long start, long length) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.start = start;
+            this.length = length;
+        }
+
+        public long length() { return length; }
+
+        public synchronized byte[] read(long offset, int len) throws IOException {
+            if (refs == 0) throw new IOException("Note source already closed");
+            byte[] b = NoteStore.readAt(channel, start + offset, len);
+            if (b == null) throw new EOFException("Note source truncated");
+            return b;
+        }
+
+        public synchronized void retain() { refs++; }
+
+        public synchronized void release() {
+            if (--refs > 0) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Read-only text decoded from a ByteSource in ~64 KB chunks cut on UTF-8 boundaries.
+    // Decoded chunks are only softly held and re-read from the source when dropped.
+    static class ChunkedText {
+        private static final int CHUNK = 1 << 16;
+        private final ByteSource source;
+        private final long[] byteStart;
+        private final int[] charStart;
+        private final List<SoftReference<char[]>> chunks = new ArrayList<>();
+        private final int crc;
+
+        ChunkedText(ByteSource source) throws IOException {
+            this.source = source;
+            List<Long> bytes = new ArrayList<>();
+            List<Integer> chars = new ArrayList<>();
+            CRC32 crc = new CRC32();
+            long pos = 0, len = source.length();
+            int count = 0;
+            while (pos < len) {
+                byte[] block = source.read(pos, (int) Math.min(CHUNK + 3, len - pos));
+                int cut = Math.min(CHUNK, block.length);
+                while (cut > 0 && cut < block.length && (block[cut] & 0xC0) == 0x80) cut--;
+                if (cut == 0) cut = Math.min(CHUNK, block.length);
+                char[] text = new String(block, 0, cut, StandardCharsets.UTF_8).toCharArray();
+                crc.update(block, 0, cut);
+                bytes.add(pos);
+                chars.add(count);
+                chunks.add(new SoftReference<>(text));
+                pos += cut;
+                count += text.length;
+            }
+            bytes.add(pos);
+            chars.add(count);
+            byteStart = new long[bytes.size()];
+            charStart = new int[chars.size()];
+            for (int i = 0; i < byteStart.length; i++) {
+                byteStart[i] = bytes.get(i);
+                charStart[i] = chars.get(i);
+            }
+            this.crc = (int) crc.getValue();
+        }
+
+        int length() { return charStart[charStart.length - 1]; }
+
+        int crc() { return crc; }
+
+        ByteSource source() { return source; }
+
+        void getChars(int from, int len, char[] out, int at) {
+            while (len > 0) {
+                int i = chunkAt(from);
+                char[] chunk = chunk(i);
+                int in = from - charStart[i];
+                int n = Math.min(len, chunk.length - in);
+                System.arraycopy(chunk, in, out, at, n);
+                from += n;
+                at += n;
+                len -= n;
+            }
+        }
+
+        // Offset in the source of the char at `pos`.
+        long byteOffset(int pos) {
+            if (pos >= length()) return byteStart[byteStart.length - 1];
+            int i = chunkAt(pos);
+            char[] chunk = chunk(i);
+            long offset = byteStart[i];
+            for (int k = 0, end = pos - charStart[i]; k < end; k++) offset += utf8Length(chunk[k]);
+            return offset;
+        }
+
+        private static int utf8Length(char c) {
+            if (c < 0x80) return 1;
+            if (c < 0x800) return 2;
+            if (Character.isHighSurrogate(c)) return 4;
+            return Character.isLowSurrogate(c) ? 0 : 3;
+        }
+
+        private int chunkAt(int pos) {
+            int i = Arrays.binarySearch(charStart, pos);
+            if (i < 0) i = -i - 2;
+            // empty trailing sentinel entries share a start with the chunk before them
+            while (i >= chunks.size()) i--;
+            return i;
+        }
+
+        private char[] chunk(int i) {
+            char[] text = chunks.get(i).get();
+            if (text == null) {
+                try {
+                    byte[] b = source.read(byteStart[i], (int) (byteStart[i + 1] - byteStart[i]));
+                    text = new String(b, StandardCharsets.UTF_8).toCharArray();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                chunks.set(i, new SoftReference<>(text));
+            }
+            return text;
+        }
+    }
+
+    // Document content for large notes: the note's original text (decoded lazily from disk)
+    // plus an append-only buffer of typed text, stitched together by a treap of pieces in
+    // document order, so inserts and removes cost O(log pieces) whatever the note size.
+    static class PieceTable implements AbstractDocument.Content, Closeable {
+        private static final Random PRIORITIES = new Random();
+
+        private static final class Piece {
+            final boolean added;
+            final int start, length, priority;
+            Piece left, right;
+            int total;
+            Piece(boolean added, int start, int length, int priority) {
+                this.added = added; this.start = start; this.length = length; this.priority = priority;
+                total = length;
+            }
+        }
+
+        private final ChunkedText original;
+        private final MarkList marks = new MarkList();
+        private char[] added = new char[1024];
+        private int addedLength;
+        private Piece root;
+
+        PieceTable(ChunkedText original) {
+            this.original = original;
+            if (original.length() > 0) root = new Piece(false, 0, original.length(), PRIORITIES.nextInt());
+            // AbstractDocument expects an implied line break at the end of the content
+            root = merge(root, addPiece("\n"));
+        }
+
+        public int length() { return total(root); }
+
+        public UndoableEdit insertString(int where, String str) throws BadLocationException {
+            if (where < 0 || where >= length()) throw new BadLocationException("Invalid insert", where);
+            if (str.isEmpty()) return null;
+            Piece[] lr = split(root, where);
+            Piece last = rightmost(lr[0]);
+            if (last != null && last.added && last.start + last.length == addedLength) {
+                // typing on from the previous insert just grows that piece
+                Piece[] rest = split(lr[0], where - last.length);
+                append(str);
+                lr[0] = merge(rest[0], new Piece(true, last.start, last.length + str.length(), last.priority));
+            } else {
+                lr[0] = merge(lr[0], addPiece(str));
+            }
+            root = merge(lr[0], lr[1]);
+            marks.inserted(where, str.length());
+            return null;
+        }
+
+        public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+            if (where < 0 || nitems < 0 || where + nitems >= length())
+                throw new BadLocationException("Invalid remove", where + nitems);
+            if (nitems == 0) return null;
+            Piece[] lr = split(root, where);
+            Piece[] mr = split(lr[1], nitems);
+            root = merge(lr[0], mr[1]);
+            marks.removed(where, nitems);
+            return null;
+        }
+
+        public Position createPosition(int offset) throws BadLocationException {
+            if (offset < 0 || offset > length()) throw new BadLocationException("Invalid position", offset);
+            return marks.create(offset);
+        }
+
+        public String getString(int where, int len) throws BadLocationException {
+            javax.swing.text.Segment txt = new javax.swing.text.Segment();
+            getChars(where, len, txt);
+            return new String(txt.array, txt.offset, txt.count);
+        }
+
+        public void getChars(int where, int len, javax.swing.text.Segment txt) throws BadLocationException {
+            if (where < 0 || len < 0 || where + len > length()) throw new BadLocationException("Invalid range", where + len);
+            char[] out = new char[len];
+            copy(root, where, len, out, 0);
+            txt.array = out;
+            txt.offset = 0;
+            txt.count = len;
+        }
+
+        // The current text as copies of byte ranges of the original body plus inserted text.
+        Patch patch() {
+            List<Piece> pieces = new ArrayList<>();
+            collect(root, pieces);
+            PatchBuilder ops = new PatchBuilder();
+            int remaining = length() - 1;
+            for (Piece p : pieces) {
+                int n = Math.min(p.length, remaining);
+                if (n <= 0) break;
+                remaining -= n;
+                if (p.added) {
+                    ops.insert(new String(added, p.start, n).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    long from = original.byteOffset(p.start);
+                    ops.copy(from, original.byteOffset(p.start + n) - from);
+                }
+            }
+            return new Patch(original.crc(), ops.toByteArray(), original.source());
+        }
+
+        public void close() { original.source().release(); }
+
+        private Piece addPiece(String str) {
+            int start = addedLength;
+            append(str);
+            return new Piece(true, start, str.length(), PRIORITIES.nextInt());
+        }
+
+        private void append(String str) {
+            if (addedLength + str.length() > added.length)
+                added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + str.length()));
+            str.getChars(0, str.length(), added, addedLength);
+            addedLength += str.length();
+        }
+
+        private void copy(Piece t, int from, int len, char[] out, int at) {
+            while (t != null && len > 0) {
+                int leftLen = total(t.left);
+                if (from < leftLen) {
+                    int n = Math.min(len, leftLen - from);
+                    copy(t.left, from, n, out, at);
+                    at += n;
+                    len -= n;
+                    from = leftLen;
+                }
+                int in = from - leftLen;
+                if (len > 0 && in < t.length) {
+                    int n = Math.min(len, t.length - in);
+                    if (t.added) System.arraycopy(added, t.start + in, out, at, n);
+                    else original.getChars(t.start + in, n, out, at);
+                    at += n;
+                    len -= n;
+                    from += n;
+                }
+                from -= leftLen + t.length;
+                t = t.right;
+            }
+        }
+
+        private static void collect(Piece t, List<Piece> out) {
+            while (t != null) {
+                collect(t.left, out);
+                out.add(t);
+                t = t.right;
+            }
+        }
+
+        private static int total(Piece t) { return t == null ? 0 : t.total; }
+
+        private static Piece update(Piece t) {
+            t.total = total(t.left) + t.length + total(t.right);
+            return t;
+        }
+
+        private static Piece rightmost(Piece t) {
+            while (t != null && t.right != null) t = t.right;
+            return t;
+        }
+
+        // Splits into the first `pos` chars and the rest, cutting a piece in two if needed.
+        private static Piece[] split(Piece t, int pos) {
+            if (t == null) return new Piece[2];
+            int leftLen = total(t.left);
+            if (pos <= leftLen) {
+                Piece[] p = split(t.left, pos);
+                t.left = p[1];
+                return new Piece[]{p[0], update(t)};
+            }
+            if (pos >= leftLen + t.length) {
+                Piece[] p = split(t.right, pos - leftLen - t.length);
+                t.right = p[0];
+                return new Piece[]{update(t), p[1]};
+            }
+            int k = pos - leftLen;
+            Piece a = new Piece(t.added, t.start, k, t.priority);
+            Piece b = new Piece(t.added, t.start + k, t.length - k, t.priority);
+            a.left = t.left;
+            b.right = t.right;
+            return new Piece[]{update(a), update(b)};
+        }
+
+        private static Piece merge(Piece a, Piece b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority >= b.priority) {
+                a.right = merge(a.right, b);
+                return update(a);
+            }
+            b.left = merge(a, b.left);
+            return update(b);
+        }
+    }
+
+    // Document positions, tracked the way GapContent does it: marks stay sorted by offset,
+    // and marks from index `gap` on store their offset minus a pending `shift`, so an edit
+    // only rewrites the marks between the previous edit location and this one.
+    static class MarkList {
+        private static final class Slot {
+            int stored;
+            boolean shifted;
+            WeakReference<Position> owner;
+        }
+
+        private final class Mark implements Position {
+            private final Slot slot;
+            Mark(Slot slot) { this.slot = slot; }
+            public int getOffset() { return offset(slot); }
+        }
+
+        private final ArrayList<Slot> slots = new ArrayList<>();
+        private int gap, shift, purgeAt = 64;
+
+        Position create(int offset) {
+            if (slots.size() >= purgeAt) purge();
+            int i = upperBound(offset);
+            Slot slot = new Slot();
+            if (i <= gap) {
+                slot.stored = offset;
+                gap++;
+            } else {
+                slot.stored = offset - shift;
+                slot.shifted = true;
+            }
+            Mark mark = new Mark(slot);
+            slot.owner = new WeakReference<>(mark);
+            slots.add(i, slot);
+            return mark;
+        }
+
+        // Positions at the insertion point move with the inserted text, except at offset 0.
+        void inserted(int where, int len) {
+            moveGap(lowerBound(where == 0 ? 1 : where));
+            shift += len;
+        }
+
+        void removed(int where, int len) {
+            int i = lowerBound(where), j = lowerBound(where + len);
+            moveGap(j);
+            for (int k = i; k < j; k++) slots.get(k).stored = where;
+            shift -= len;
+        }
+
+        private int offset(Slot s) { return s.shifted ? s.stored + shift : s.stored; }
+
+        private void moveGap(int i) {
+            for (; gap < i; gap++) {
+                Slot s = slots.get(gap);
+                s.stored += shift;
+                s.shifted = false;
+            }
+            for (; gap > i; gap--) {
+                Slot s = slots.get(gap - 1);
+                s.stored -= shift;
+                s.shifted = true;
+            }
+        }
+
+        // Drops marks whose Position has been garbage collected.
+        private void purge() {
+            moveGap(slots.size());
+            slots.removeIf(s -> s.owner.get() == null);
+            gap = slots.size();
+            purgeAt = Math.max(64, slots.size() * 2);
+        }
+
+        private int lowerBound(int offset) {
+            int lo = 0, hi = slots.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (offset(slots.get(mid)) < offset) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private int upperBound(int offset) {
+            int lo = 0, hi = slots.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (offset(slots.get(mid)) <= offset) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    // A note body as ops against the trimmed UTF-8 bytes of a base body identified by its CRC32:
+    // 'C' offset length copies from the base, 'I' length bytes inserts new text.
+    static final class Patch {
+        final int baseCrc;
+        final byte[] ops;
+        private final ByteSource base;
+
+        Patch(int baseCrc, byte[] ops, ByteSource base) {
+            this.baseCrc = baseCrc;
+            this.ops = ops;
+            this.base = base;
+            base.retain();
+        }
+
+        byte[] materialize() throws IOException {
+            return apply(base.read(0, (int) base.length()), ops);
+        }
+
+        void retain() { base.retain(); }
+
+        void release() { base.release(); }
+
+        static byte[] apply(byte[] base, byte[] ops) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, resultLength(ops)));
+            ByteBuffer in = ByteBuffer.wrap(ops);
+            while (in.hasRemaining()) {
+                if (in.get() == 'C') {
+                    long from = in.getLong();
+                    int len = in.getInt();
+                    out.write(base, (int) from, len);
+                } else {
+                    int len = in.getInt();
+                    out.write(ops, in.position(), len);
+                    in.position(in.position() + len);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        static long resultLength(byte[] ops) {
+            long total = 0;
+            ByteBuffer in = ByteBuffer.wrap(ops);
+            while (in.hasRemaining()) {
+                if (in.get() == 'C') {
+                    in.getLong();
+                    total += in.getInt();
+                } else {
+                    int len = in.getInt();
+                    total += len;
+                    in.position(in.position() + len);
+                }
+            }
+            return total;
+        }
+    }
+
+    static final class PatchBuilder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private long copyFrom = -1, copyLength;
+
+        void copy(long from, long length) {
+            if (copyFrom >= 0 && copyFrom + copyLength == from) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyFrom = from;
+            copyLength = length;
+        }
+
+        void insert(byte[] text) {
+            flush();
+            try {
+                out.writeByte('I');
+                out.writeInt(text.length);
+                out.write(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        byte[] toByteArray() {
+            flush();
+            return bytes.toByteArray();
+        }
+
+        private void flush() {
+            if (copyFrom < 0) return;
+            try {
+                out.writeByte('C');
+                out.writeLong(copyFrom);
+                out.writeInt((int) copyLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            copyFrom = -1;
+        }
+    }
+
+    // -------- Background Writer --------
+
+    // A queued note write: a full body, a patch against the stored body, or (neither) a delete.
+    static final class Edit {
+        final String title, body;
+        final Patch patch;
+        Edit(String title, String body, Patch patch) { this.title = title; this.body = body; this.patch = patch; }
+
+        String text() throws IOException {
+            if (body != null) return body;
+            return patch == null ? "" : new String(patch.materialize(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Single thread that owns all note writes. The EDT hands it edits through `queued`,
+    // which keeps only the latest edit per title, so it is bounded by the number of notes and
+    // handing over an edit never waits on the disk. Everything queued by the time the thread
+    // wakes up is written as one batch, made durable with a single fsync. Saves arriving
+    // during that fsync form the next batch, so the cost is per batch, not per save.
+    static class NoteWriter implements Closeable {
+        private final NoteStore store;
+        private final Consumer<String> state;
+        private final Map<String, Edit> queued = new LinkedHashMap<>(); // guarded by this
+        private final Map<String, Edit> writing = new ConcurrentHashMap<>(); // taken, not yet in the store
+        private boolean stopping; // guarded by this
+        private final Thread thread;
+
+        NoteWriter(NoteStore store, Consumer<String> state) {
+            this.store = store;
+            this.state = state;
+            thread = new Thread(this::run, "notes-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(String title, String body) { enqueue(new Edit(title, body, null)); }
+
+        // Takes over the caller's reference to the patch.
+        void patch(String title, Patch patch) { enqueue(new Edit(title, null, patch)); }
+
+        void delete(String title) { enqueue(new Edit(title, null, null)); }
+
+        // The latest edit of a note that has not reached the store yet, so readers never see
+        // an older body than the one the user last saved.
+        Edit pending(String title) {
+            synchronized (this) {
+                Edit edit = queued.get(title);
+                if (edit != null) return edit;
+            }
+            return writing.get(title);
+        }
+
+        // An edit replaced before the thread took it is never written; its patch goes back.
+        private synchronized void enqueue(Edit edit) {
+            Edit superseded = queued.put(edit.title, edit);
+            if (superseded != null && superseded.patch != null) superseded.patch.release();
+            notifyAll();
+        }
+
+        private void run() {
+            List<Edit> batch = new ArrayList<>();
+            while (true) {
+                synchronized (this) {
+                    while (queued.isEmpty() && !stopping) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (queued.isEmpty()) return;
+                    for (Edit edit : queued.values()) {
+                        writing.put(edit.title, edit);
+                        batch.add(edit);
+                    }
+                    queued.clear();
+                }
+                write(batch);
+                batch.clear();
+            }
+        }
+
+        private void write(Collection<Edit> edits) {
+            state.accept("Saving…");
+            try {
+                for (Edit edit : edits) {
+                    if (edit.patch != null) {
+                        if (!store.patch(edit.title, edit.patch.baseCrc, edit.patch.ops))
+                            store.put(edit.title, edit.text());
+                    } else if (edit.body != null) {
+                        store.put(edit.title, edit.body);
+                    } else {
+                        store.delete(edit.title);
+                    }
+                    writing.remove(edit.title, edit);
+                }
+                store.sync();
+                state.accept("Saved");
+            } catch (IOException e) {
+                e.printStackTrace();
+                state.accept("Save failed: " + e.getMessage());
+            } finally {
+                for (Edit edit : edits) if (edit.patch != null) edit.patch.release();
+            }
+        }
+
+        // Waits for everything queued so far to reach the store.
+        public void close() {
+            synchronized (this) {
+                stopping = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // -------- Storage --------
+
+    // LRU map of note bodies bounded by an estimate of their heap footprint rather than by
+    // entry count, so a few huge notes cannot blow the budget. Guarded by the owning store.
+    static class BodyCache {
+        private final long budget;
+        private final LinkedHashMap<String, String> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes, hits, misses, evictions;
+
+        BodyCache(long budget) { this.budget = budget; }
+
+        String get(String title) {
+            String body = map.get(title);
+            if (body == null) misses++;
+            else hits++;
+            return body;
+        }
+
+        void put(String title, String body) {
+            remove(title);
+            long cost = cost(title, body);
+            if (cost > budget) return;
+            map.put(title, body);
+            bytes += cost;
+            Iterator<Map.Entry<String, String>> it = map.entrySet().iterator();
+            while (bytes > budget && it.hasNext()) {
+                Map.Entry<String, String> eldest = it.next();
+                bytes -= cost(eldest.getKey(), eldest.getValue());
+                it.remove();
+                evictions++;
+            }
+        }
+
+        void remove(String title) {
+            String old = map.remove(title);
+            if (old != null) bytes -= cost(title, old);
+        }
+
+        void clear() {
+            map.clear();
+            bytes = 0;
+        }
+
+        private static long cost(String title, String body) {
+            return 64 + 2L * (title.length() + body.length());
+        }
+
+        public String toString() {
+            return String.format("Note cache: %d notes, %.1f/%.1f MB, %d hits, %d misses, %d evictions",
+                    map.size(), bytes / 1048576.0, budget / 1048576.0, hits, misses, evictions);
+        }
+    }
+
+    // Byte range of a note body, either in notes_data.txt or in its journal.
+    static class Segment {
+        final boolean journal;
+        final long offset;
+        final int length;
+        Integer crc; // CRC32 of the trimmed body, computed when a patch needs it
+        Segment(boolean journal, long offset, int length) {
+            this.journal = journal; this.offset = offset; this.length = length;
+        }
+    }
+
+    // A body stored as patch ops (in the journal) applied to the trimmed body of `base`.
+    static final class PatchSegment extends Segment {
+        final Segment base;
+        final long bodyLength;
+        PatchSegment(Segment base, long offset, int length, long bodyLength) {
+            super(true, offset, length);
+            this.base = base;
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    // One deflated block of note bodies in a block snapshot; inflated on demand and kept
+    // while memory allows, so neighbouring notes in the block come for free.
+    static final class Block {
+        final long offset;
+        final int packed, raw;
+        SoftReference<byte[]> data = new SoftReference<>(null);
+        Block(long offset, int packed, int raw) {
+            this.offset = offset; this.packed = packed; this.raw = raw;
+        }
+    }
+
+    // A body at `offset`/`length` within the inflated bytes of `block`.
+    static final class BlockSegment extends Segment {
+        final Block block;
+        BlockSegment(Block block, int offset, int length) {
+            super(false, offset, length);
+            this.block = block;
+        }
+    }
+
+    // Block snapshot layout: "NOTB", version, the deflated blocks, a deflated directory of
+    // (title, block offset, packed and raw block size, body offset, body length) in note
+    // order, then a footer of directory offset, packed and raw directory size and "NOTB".
+    static final class BlockWriter implements Closeable {
+        static final byte[] MAGIC = {'N', 'O', 'T', 'B'};
+        static final int VERSION = 1, BLOCK_BYTES = 64 * 1024;
+        private final FileChannel out;
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES);
+        private final ByteArrayOutputStream dirBytes = new ByteArrayOutputStream();
+        private final DataOutputStream dir = new DataOutputStream(dirBytes);
+        private final List<String> titles = new ArrayList<>();
+        private final List<int[]> spans = new ArrayList<>();
+        final Map<String, Segment> written = new HashMap<>();
+        long rawBytes;
+        private long pos;
+
+        BlockWriter(File target, int notes) throws IOException {
+            out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer head = ByteBuffer.allocate(8).put(MAGIC).putInt(VERSION);
+            head.flip();
+            write(head);
+            dir.writeInt(notes);
+        }
+
+        void add(String title, byte[] body) throws IOException {
+            if (raw.size() > 0 && raw.size() + body.length > BLOCK_BYTES) flushBlock();
+            titles.add(title);
+            spans.add(new int[] {raw.size(), body.length});
+            raw.write(body);
+            rawBytes += body.length;
+        }
+
+        private void flushBlock() throws IOException {
+            byte[] packed = deflate(raw.toByteArray());
+            Block block = new Block(pos, packed.length, raw.size());
+            write(ByteBuffer.wrap(packed));
+            for (int i = 0; i < titles.size(); i++) {
+                byte[] t = titles.get(i).getBytes(StandardCharsets.UTF_8);
+                int[] span = spans.get(i);
+                dir.writeInt(t.length);
+                dir.write(t);
+                dir.writeLong(block.offset);
+                dir.writeInt(block.packed);
+                dir.writeInt(block.raw);
+                dir.writeInt(span[0]);
+                dir.writeInt(span[1]);
+                written.put(titles.get(i), new BlockSegment(block, span[0], span[1]));
+            }
+            titles.clear();
+            spans.clear();
+            raw.reset();
+        }
+
+        private void write(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) pos += out.write(buf, pos);
+        }
+
+        public void close() throws IOException {
+            try {
+                if (raw.size() > 0) flushBlock();
+                dir.flush();
+                byte[] packed = deflate(dirBytes.toByteArray());
+                long dirOffset = pos;
+                write(ByteBuffer.wrap(packed));
+                ByteBuffer foot = ByteBuffer.allocate(20).putLong(dirOffset).putInt(packed.length)
+                        .putInt(dirBytes.size()).put(MAGIC);
+                foot.flip();
+                write(foot);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        static byte[] deflate(byte[] raw) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+                byte[] buf = new byte[8192];
+                while (!deflater.finished()) out.write(buf, 0, deflater.deflate(buf));
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        static byte[] inflate(byte[] packed, int rawLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(packed);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int got = inflater.inflate(raw, n, rawLength - n);
+                    if (got == 0 && inflater.needsInput()) break;
+                    n += got;
+                }
+                if (n != rawLength) throw new IOException("Truncated note block");
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt note block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    // One saved version of a note. A delta is patch ops against the version at `base`.
+    static final class Revision {
+        static final long UNKNOWN = -1;
+        final int index, base, depth, length, stored;
+        final long time, offset;
+        final long crc; // CRC32 of the body, UNKNOWN for versions saved as a large-note patch
+        Revision(int index, int base, int depth, long time, long offset, int length, int stored, long crc) {
+            this.index = index; this.base = base; this.depth = depth; this.time = time;
+            this.offset = offset; this.length = length; this.stored = stored; this.crc = crc;
+        }
+
+        boolean keyframe() { return base < 0; }
+
+        // the same version with its record moved to `offset`
+        Revision at(long offset) { return new Revision(index, base, depth, time, offset, length, stored, crc); }
+
+        public String toString() {
+            return String.format("%tF %<tT   %s (%,d bytes)", time, keyframe() ? "full copy" : "change", stored);
+        }
+    }
+
+    // Every saved version of every note, appended to notes_data.txt.history in the journal's
+    // record format. A version is kept as a delta against an earlier one, or whole when the
+    // delta would not be much smaller or its chain of deltas reaches KEYFRAME_EVERY, so
+    // history grows with the size of the changes and rebuilding a version stays cheap.
+    // Record bodies: time, base index, CRC of the base body, CRC of the body, then the
+    // ops or the body. Deleting a note appends a tombstone that ends its history, so a note
+    // later saved under the same title starts afresh; once the histories ended that way
+    // make up half the file, compact() rewrites it without them. Loaded on first use;
+    // guarded by the owning store.
+    static class NoteHistory implements Closeable {
+        private static final int KEYFRAME_EVERY = 16;
+        private static final long COMPACT_MIN_BYTES = 1 << 20;
+        private static final byte KEYFRAME = 'K', DELTA = 'D', TOMBSTONE = 'T';
+        private final File file;
+        private final Map<String, List<Revision>> revisions = new HashMap<>();
+        private FileChannel channel;
+        private long size;
+
+        NoteHistory(File file) { this.file = file; }
+
+        List<Revision> list(String title) throws IOException {
+            load();
+            List<Revision> revs = revisions.get(title);
+            return revs == null ? Collections.<Revision>emptyList() : new ArrayList<>(revs);
+        }
+
+        // Records `now` replacing `old` (null for a new note).
+        void record(String title, String old, String now) throws IOException {
+            load();
+            List<Revision> revs = revisions.computeIfAbsent(title, k -> new ArrayList<>());
+            byte[] after = now.getBytes(StandardCharsets.UTF_8);
+            Revision base = null;
+            if (old != null) {
+                byte[] before = old.getBytes(StandardCharsets.UTF_8);
+                long oldCrc = crc(before);
+                base = revs.isEmpty() ? null : revs.get(revs.size() - 1);
+                if (base != null && base.crc != Revision.UNKNOWN && base.crc != oldCrc) base = null;
+                // the body being replaced predates the history (or the history missed it): keep it too
+                if (base == null && !old.isEmpty()) base = append(title, null, 0, oldCrc, before);
+                if (base != null && base.depth + 1 < KEYFRAME_EVERY) {
+                    byte[] ops = diff(before, after);
+                    if (ops.length < after.length / 2) {
+                        append(title, base, oldCrc, crc(after), ops);
+                        return;
+                    }
+                }
+            }
+            append(title, null, 0, crc(after), after);
+        }
+
+        // Records that the note was deleted.
+        void forget(String title) throws IOException {
+            load();
+            if (revisions.remove(title) == null) return;
+            byte[] data = ByteBuffer.allocate(24).putLong(System.currentTimeMillis()).putInt(-1).putInt(0).putLong(0).array();
+            ByteBuffer rec = NoteStore.record(TOMBSTONE, title.getBytes(StandardCharsets.UTF_8), data);
+            while (rec.hasRemaining()) size += channel.write(rec, size);
+        }
+
+        // Keeps only the histories of the notes in `live`, rewriting the file once what it
+        // drops is at least half of it.
+        void compact(Set<String> live) throws IOException {
+            load();
+            revisions.keySet().retainAll(live);
+            long keep = 0;
+            for (List<Revision> revs : revisions.values()) for (Revision rev : revs) keep += rev.length + 4;
+            if (size - keep < Math.max(COMPACT_MIN_BYTES, size / 2)) return;
+            File tmp = new File(file.getPath() + ".tmp");
+            Map<String, List<Revision>> moved = new HashMap<>();
+            long pos = 0;
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<String, List<Revision>> e : revisions.entrySet()) {
+                    List<Revision> revs = new ArrayList<>(e.getValue().size());
+                    for (Revision rev : e.getValue()) {
+                        long n = rev.length + 4;
+                        for (long done = 0; done < n; ) done += channel.transferTo(rev.offset + done, n - done, out);
+                        revs.add(rev.at(pos));
+                        pos += n;
+                    }
+                    moved.put(e.getKey(), revs);
+                }
+                out.force(false);
+            }
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            NoteStore.syncDirectory(file);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = pos;
+            revisions.clear();
+            revisions.putAll(moved);
+        }
+
+        // Records a large-note save straight from its patch ops when the version they were
+        // made against is in the history; returns false if it isn't.
+        boolean recordPatch(String title, int baseCrc, byte[] ops) throws IOException {
+            load();
+            List<Revision> revs = revisions.get(title);
+            if (revs == null) return false;
+            for (int i = revs.size() - 1; i >= 0; i--) {
+                Revision base = revs.get(i);
+                if (base.crc != (baseCrc & 0xFFFFFFFFL)) continue;
+                if (base.depth + 1 >= KEYFRAME_EVERY) {
+                    byte[] body = Patch.apply(body(title, i), ops);
+                    append(title, null, 0, crc(body), body);
+                } else {
+                    append(title, base, baseCrc, Revision.UNKNOWN, ops);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        byte[] body(String title, int index) throws IOException {
+            load();
+            Revision rev = revisions.get(title).get(index);
+            ByteBuffer rec = ByteBuffer.wrap(NoteStore.readAt(channel, rev.offset, rev.length + 4));
+            CRC32 crc = new CRC32();
+            crc.update(rec.array(), 0, rev.length);
+            if ((int) crc.getValue() != rec.getInt(rev.length)) throw new IOException("This version is damaged");
+            int body = 9 + rec.getInt(1);
+            byte[] payload = Arrays.copyOfRange(rec.array(), body + 24, rev.length);
+            if (rev.keyframe()) return payload;
+            byte[] base = body(title, rev.base);
+            if ((int) crc(base) != rec.getInt(body + 12)) throw new IOException("An earlier version this one builds on is missing");
+            return Patch.apply(base, payload);
+        }
+
+        // Appends a whole body (no base) or ops against `base`, whose body has CRC `baseCrc`.
+        private Revision append(String title, Revision base, long baseCrc, long crc, byte[] payload) throws IOException {
+            List<Revision> revs = revisions.get(title);
+            long time = System.currentTimeMillis();
+            byte[] data = ByteBuffer.allocate(24 + payload.length).putLong(time)
+                    .putInt(base == null ? -1 : base.index).putInt((int) baseCrc).putLong(crc).put(payload).array();
+            byte[] t = title.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer rec = NoteStore.record(base == null ? KEYFRAME : DELTA, t, data);
+            long start = size;
+            while (rec.hasRemaining()) size += channel.write(rec, size);
+            Revision rev = new Revision(revs.size(), base == null ? -1 : base.index,
+                    base == null ? 0 : base.depth + 1, time, start, rec.limit() - 4, payload.length, crc);
+            revs.add(rev);
+            return rev;
+        }
+
+        private void load() throws IOException {
+            if (channel != null) return;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            revisions.clear();
+            long pos = 0, end = channel.size();
+            while (pos + 9 <= end) {
+                byte[] head = NoteStore.readAt(channel, pos, 5);
+                int tlen = ByteBuffer.wrap(head, 1, 4).getInt();
+                if ((head[0] != KEYFRAME && head[0] != DELTA && head[0] != TOMBSTONE) || tlen < 0 || pos + 9 + tlen + 24 + 4 > end) break;
+                byte[] t = NoteStore.readAt(channel, pos + 5, tlen + 4 + 24);
+                ByteBuffer b = ByteBuffer.wrap(t, tlen, 4 + 24);
+                int blen = b.getInt();
+                long length = 9 + tlen + (long) blen;
+                if (blen < 24 || pos + length + 4 > end) break;
+                long time = b.getLong();
+                int base = b.getInt();
+                b.getInt();
+                long crc = b.getLong();
+                String title = new String(t, 0, tlen, StandardCharsets.UTF_8);
+                if (head[0] == TOMBSTONE) {
+                    revisions.remove(title);
+                    pos += length + 4;
+                    continue;
+                }
+                List<Revision> revs = revisions.computeIfAbsent(title, k -> new ArrayList<>());
+                if (head[0] == KEYFRAME) base = -1;
+                else if (base < 0 || base >= revs.size()) break;
+                int depth = base < 0 ? 0 : revs.get(base).depth + 1;
+                revs.add(new Revision(revs.size(), base, depth, time, pos, (int) length, blen - 24, crc));
+                pos += length + 4;
+            }
+            // a record cut short by a crash
+            if (pos < end) channel.truncate(pos);
+            size = pos;
+        }
+
+        // Ops rebuilding `after` from `before`: the common prefix and suffix are copied and only
+        // the middle is stored, which covers the single edited region between two autosaves.
+        static byte[] diff(byte[] before, byte[] after) {
+            int max = Math.min(before.length, after.length), prefix = 0, suffix = 0;
+            while (prefix < max && before[prefix] == after[prefix]) prefix++;
+            while (suffix < max - prefix && before[before.length - 1 - suffix] == after[after.length - 1 - suffix]) suffix++;
+            PatchBuilder ops = new PatchBuilder();
+            if (prefix > 0) ops.copy(0, prefix);
+            if (after.length - suffix > prefix) ops.insert(Arrays.copyOfRange(after, prefix, after.length - suffix));
+            if (suffix > 0) ops.copy(before.length - suffix, suffix);
+            return ops.toByteArray();
+        }
+
+        private static long crc(byte[] b) {
+            CRC32 crc = new CRC32();
+            crc.update(b);
+            return crc.getValue();
+        }
+
+        // The open history file, for the store to fsync alongside its journal.
+        FileChannel channel() { return channel; }
+
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+            revisions.clear();
+        }
+    }
+
+    // notes_data.txt stays a ###/$$$ snapshot that is scanned once into a title -> segment
+    // index. Adds, edits and deletes are appended as records to notes_data.txt.journal,
+    // and a background compactor folds the journal back into a fresh snapshot. With
+    // `compressed` set the snapshot is notes_data.txt.blk instead, made of deflated blocks;
+    // a notebook found in the other format is rewritten in the configured one on open.
+    static class NoteStore implements Closeable {
+        private static final byte[] NL = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        private static final byte PUT = 'P', DELETE = 'D', PATCH = 'X';
+        private static final long COMPACT_MIN_BYTES = 1 << 20;
+        private final File file, blockFile, journalFile;
+        private final boolean compressed;
+        private File snapshotFile;
+        private long blockRaw;
+        private final Map<String, Segment> index = new LinkedHashMap<>();
+        private final BodyCache cache = new BodyCache(Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 8));
+        private final NoteHistory history;
+        private FileChannel snapshot, journal;
+        private long journalSize, syncedSize;
+        private String recovery;
+        private ScheduledExecutorService compactor;
+        private boolean compacting;
+
+        NoteStore(File file, boolean compressed) {
+            this.file = file;
+            this.blockFile = new File(file.getPath() + ".blk");
+            this.journalFile = new File(file.getPath() + ".journal");
+            this.history = new NoteHistory(new File(file.getPath() + ".history"));
+            this.compressed = compressed;
+        }
+
+        List<String> open() throws IOException { return open(null); }
+
+        // `pages`, if given, is handed the titles found in the snapshot in batches while it is
+        // still being scanned; the returned list is the final one after the journal replay.
+        List<String> open(Consumer<List<String>> pages) throws IOException {
+            close();
+            synchronized (this) {
+                index.clear();
+                cache.clear();
+                recovery = null;
+                recover();
+                snapshotFile = pickSnapshot();
+                if (snapshotFile != null) {
+                    snapshot = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+                    if (blockFile.equals(snapshotFile)) scanBlocks(pages);
+                    else scan(pages);
+                }
+                journal = FileChannel.open(journalFile.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                replay();
+                if (snapshotFile != null && !snapshotFile.equals(target())) compact();
+                compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "notes-compactor");
+                    t.setDaemon(true);
+                    return t;
+                });
+                compactor.scheduleWithFixedDelay(this::compactIfNeeded, 30, 30, TimeUnit.SECONDS);
+                return new ArrayList<>(index.keySet());
+            }
+        }
+
+        private File target() { return compressed ? blockFile : file; }
+
+        // Temp files are only ever renamed into place once complete, so any left over are
+        // from a compaction that never finished and can go.
+        private void recover() throws IOException {
+            for (File f : new File[] {file, blockFile, journalFile, new File(file.getPath() + ".history")}) {
+                if (Files.deleteIfExists(new File(f.getPath() + ".tmp").toPath()))
+                    note("discarded an unfinished compaction");
+            }
+        }
+
+        private void note(String what) {
+            recovery = recovery == null ? what : recovery + "; " + what;
+        }
+
+        // What open() had to repair after a crash, or null if the files were clean.
+        synchronized String recovery() { return recovery; }
+
+        // The snapshot in the configured format, else the one in the other format. Both only
+        // exist if a migration was cut short, and then the newer one is the live one.
+        private File pickSnapshot() throws IOException {
+            File want = target(), other = compressed ? file : blockFile;
+            if (want.exists() && other.exists()) {
+                Files.delete((want.lastModified() >= other.lastModified() ? other : want).toPath());
+            }
+            return want.exists() ? want : other.exists() ? other : null;
+        }
+
+        synchronized boolean contains(String title) { return index.containsKey(title); }
+
+        synchronized String read(String title) throws IOException {
+            String body = cache.get(title);
+            if (body != null) return body;
+            Segment seg = index.get(title);
+            if (seg == null) return "";
+            body = read(seg);
+            cache.put(title, body);
+            return body;
+        }
+
+        // For bulk passes over the whole notebook that should not flush the cache.
+        synchronized String readUncached(String title) throws IOException {
+            Segment seg = index.get(title);
+            return seg == null ? "" : read(seg);
+        }
+
+        synchronized void put(String title, String body) throws IOException {
+            String trimmed = body.trim();
+            String old = index.containsKey(title) ? read(title) : null;
+            if (trimmed.equals(old)) return;
+            byte[] t = title.getBytes(StandardCharsets.UTF_8);
+            byte[] data = body.getBytes(StandardCharsets.UTF_8);
+            long start = append(PUT, t, data);
+            index.put(title, new Segment(true, start + 9 + t.length, data.length));
+            cache.put(title, trimmed);
+            try {
+                history.record(title, old, trimmed);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        synchronized void delete(String title) throws IOException {
+            if (!index.containsKey(title)) return;
+            append(DELETE, title.getBytes(StandardCharsets.UTF_8), new byte[0]);
+            index.remove(title);
+            cache.remove(title);
+            try {
+                history.forget(title);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Stores a body as a patch against the note's current body, or against the base of its
+        // current patch when the caller is still diffing from the same base. Returns false if
+        // neither matches `baseCrc`, in which case the caller has to write the full body.
+        synchronized boolean patch(String title, int baseCrc, byte[] ops) throws IOException {
+            Segment current = index.get(title);
+            Segment base = patchBase(current, baseCrc);
+            if (base == null) return false;
+            byte[] t = title.getBytes(StandardCharsets.UTF_8);
+            byte[] data = ByteBuffer.allocate(4 + ops.length).putInt(baseCrc).put(ops).array();
+            long start = append(PATCH, t, data);
+            PatchSegment seg = new PatchSegment(base, start + 13 + t.length, ops.length, Patch.resultLength(ops));
+            index.put(title, seg);
+            cache.remove(title);
+            try {
+                // only a note with no history yet costs a full read here
+                if (!history.recordPatch(title, baseCrc, ops)) history.record(title, read(current), read(seg));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        synchronized List<Revision> history(String title) throws IOException { return history.list(title); }
+
+        synchronized String revision(String title, int index) throws IOException {
+            return new String(history.body(title, index), StandardCharsets.UTF_8);
+        }
+
+        private Segment patchBase(Segment current, int baseCrc) throws IOException {
+            if (current == null) return null;
+            if (current instanceof PatchSegment && crc(((PatchSegment) current).base) == baseCrc)
+                return ((PatchSegment) current).base;
+            return crc(current) == baseCrc ? current : null;
+        }
+
+        private int crc(Segment seg) throws IOException {
+            if (seg.crc == null) {
+                CRC32 crc = new CRC32();
+                crc.update(read(seg).getBytes(StandardCharsets.UTF_8));
+                seg.crc = (int) crc.getValue();
+            }
+            return seg.crc;
+        }
+
+        synchronized long bodyBytes(String title) {
+            Segment seg = index.get(title);
+            if (seg == null) return 0;
+            return seg instanceof PatchSegment ? ((PatchSegment) seg).bodyLength : seg.length;
+        }
+
+        // The trimmed body as a byte source that stays readable across compactions.
+        synchronized ByteSource openSource(String title) throws IOException {
+            Segment seg = index.get(title);
+            if (seg == null) return new ArraySource(new byte[0]);
+            if (seg instanceof PatchSegment || seg instanceof BlockSegment) {
+                return new ArraySource(read(seg).getBytes(StandardCharsets.UTF_8));
+            }
+            FileChannel ch = seg.journal ? journal : snapshot;
+            long start = seg.offset, end = seg.offset + seg.length;
+            // String.trim() drops chars <= ' ', which are exactly the single bytes <= 0x20 in UTF-8
+            while (start < end) {
+                byte[] b = readAt(ch, start, (int) Math.min(4096, end - start));
+                int i = 0;
+                while (i < b.length && (b[i] & 0xFF) <= ' ') i++;
+                start += i;
+                if (i < b.length) break;
+            }
+            while (end > start) {
+                int n = (int) Math.min(4096, end - start);
+                byte[] b = readAt(ch, end - n, n);
+                int i = n;
+                while (i > 0 && (b[i - 1] & 0xFF) <= ' ') i--;
+                end -= n - i;
+                if (i > 0) break;
+            }
+            return new FileSource((seg.journal ? journalFile : snapshotFile).toPath(), start, end - start);
+        }
+
+        synchronized String cacheStats() { return cache.toString(); }
+
+        // Makes everything appended so far durable. The writer calls this once per batch. The
+        // fsync runs outside the lock so reads aren't held up by the disk.
+        void sync() throws IOException {
+            while (true) {
+                FileChannel ch, hist;
+                long upTo;
+                synchronized (this) {
+                    if (journal == null || syncedSize >= journalSize) return;
+                    ch = journal;
+                    hist = history.channel();
+                    upTo = journalSize;
+                }
+                try {
+                    ch.force(false);
+                    if (hist != null) hist.force(false);
+                } catch (ClosedChannelException e) {
+                    // a compaction swapped the journal or the history and forced what it carried
+                    // over; retry against the new ones unless the store itself was closed
+                    synchronized (this) { if ((journal == ch && history.channel() == hist) || journal == null) throw e; }
+                    continue;
+                }
+                synchronized (this) { if (journal == ch) syncedSize = Math.max(syncedSize, upTo); }
+                return;
+            }
+        }
+
+        // Compression achieved by the block snapshot, or null for a plain text one.
+        synchronized String storageStats() {
+            if (snapshot == null || !blockFile.equals(snapshotFile)) return null;
+            try {
+                long packed = snapshot.size();
+                return String.format("stored %.1fx compressed (%,d KB in %,d KB)",
+                        blockRaw / (double) Math.max(1, packed), blockRaw >> 10, packed >> 10);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private long append(byte op, byte[] title, byte[] body) throws IOException {
+            ByteBuffer rec = record(op, title, body);
+            long start = journalSize;
+            while (rec.hasRemaining()) journalSize += journal.write(rec, journalSize);
+            return start;
+        }
+
+        // Record: op, title length, title, body length, body, CRC32 of everything before it.
+        private static ByteBuffer record(byte op, byte[] title, byte[] body) {
+            ByteBuffer rec = ByteBuffer.allocate(9 + title.length + body.length + 4);
+            rec.put(op).putInt(title.length).put(title).putInt(body.length).put(body);
+            CRC32 crc = new CRC32();
+            crc.update(rec.array(), 0, rec.position());
+            rec.putInt((int) crc.getValue());
+            rec.flip();
+            return rec;
+        }
+
+        private void replay() throws IOException {
+            long pos = 0, size = journal.size();
+            while (pos < size) {
+                byte[] head = readAt(journal, pos, 5);
+                if (head == null) break;
+                byte op = head[0];
+                int tlen = ByteBuffer.wrap(head, 1, 4).getInt();
+                if ((op != PUT && op != DELETE && op != PATCH) || tlen < 0 || tlen > size - pos) break;
+                byte[] title = readAt(journal, pos + 5, tlen + 4);
+                if (title == null) break;
+                int blen = ByteBuffer.wrap(title, tlen, 4).getInt();
+                if (blen < 0 || blen > size - pos) break;
+                byte[] body = readAt(journal, pos + 9 + tlen, blen + 4);
+                if (body == null) break;
+                CRC32 crc = new CRC32();
+                crc.update(head);
+                crc.update(title);
+                crc.update(body, 0, blen);
+                if ((int) crc.getValue() != ByteBuffer.wrap(body, blen, 4).getInt()) break;
+                String name = new String(title, 0, tlen, StandardCharsets.UTF_8);
+                if (op == PUT) {
+                    index.put(name, new Segment(true, pos + 9 + tlen, blen));
+                } else if (op == DELETE) {
+                    index.remove(name);
+                } else {
+                    // a patch whose base no longer matches was already folded into the snapshot
+                    Segment base = blen < 4 ? null : patchBase(index.get(name), ByteBuffer.wrap(body, 0, 4).getInt());
+                    byte[] ops = Arrays.copyOfRange(body, 4, blen);
+                    if (base != null) index.put(name, new PatchSegment(base, pos + 13 + tlen, ops.length, Patch.resultLength(ops)));
+                }
+                pos += 9 + tlen + blen + 4;
+            }
+            // anything after the last intact record is a torn append from a crash
+            if (pos < size) {
+                journal.truncate(pos);
+                journal.force(false);
+                note(String.format("dropped %,d bytes of a torn save", size - pos));
+            }
+            journalSize = syncedSize = pos;
+        }
+
+        private void compactIfNeeded() {
+            try {
+                synchronized (this) {
+                    long snap = snapshot == null ? 0 : snapshot.size();
+                    if (journalSize < Math.max(COMPACT_MIN_BYTES, snap / 2)) return;
+                }
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Writes the live notes into a new snapshot without holding the lock, so saves keep
+        // appending meanwhile; records appended during the rewrite are carried over into the
+        // new journal. Replaying an old journal over a new snapshot is harmless: puts only ever
+        // set a note to a body it later reaches anyway, and patches carry the checksum of
+        // their base, so one whose base has since been folded into the snapshot is skipped.
+        void compact() throws IOException {
+            Map<String, Segment> live;
+            long mark;
+            synchronized (this) {
+                if (compacting || journal == null) return;
+                compacting = true;
+                live = new LinkedHashMap<>(index);
+                mark = journalSize;
+            }
+            try {
+                File target = target(), tmp = new File(target.getPath() + ".tmp");
+                long raw = 0;
+                Map<String, Segment> written;
+                if (compressed) {
+                    BlockWriter out = new BlockWriter(tmp, live.size());
+                    try {
+                        for (Map.Entry<String, Segment> e : live.entrySet()) {
+                            out.add(e.getKey(), read(e.getValue()).getBytes(StandardCharsets.UTF_8));
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    written = out.written;
+                    raw = out.rawBytes;
+                } else {
+                    written = writeSnapshot(tmp, live);
+                }
+                synchronized (this) {
+                    File tail = new File(journalFile.getPath() + ".tmp");
+                    try (FileChannel out = FileChannel.open(tail.toPath(), StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long pos = mark;
+                        while (pos < journalSize) pos += journal.transferTo(pos, journalSize - pos, out);
+                        for (Map.Entry<String, Segment> e : index.entrySet()) {
+                            if (survives(e.getValue(), live.get(e.getKey()), mark)) continue;
+                            // a patch made after the mark against a body the new snapshot no
+                            // longer holds: carry the full body over instead
+                            byte[] t = e.getKey().getBytes(StandardCharsets.UTF_8);
+                            byte[] data = read(e.getValue()).getBytes(StandardCharsets.UTF_8);
+                            ByteBuffer rec = record(PUT, t, data);
+                            long start = journalSize;
+                            while (rec.hasRemaining()) journalSize += out.write(rec, journalSize - mark);
+                            e.setValue(new Segment(true, start + 9 + t.length, data.length));
+                        }
+                        out.force(false);
+                    }
+                    // both files are complete and on disk before either is renamed over the
+                    // live one, and each rename is atomic
+                    closeChannels();
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    if (snapshotFile != null && !snapshotFile.equals(target)) Files.deleteIfExists(snapshotFile.toPath());
+                    Files.move(tail.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    syncDirectory(target);
+                    snapshotFile = target;
+                    blockRaw = raw;
+                    snapshot = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+                    journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    journalSize -= mark;
+                    syncedSize = journalSize;
+                    for (Map.Entry<String, Segment> e : index.entrySet()) {
+                        e.setValue(relocate(e.getValue(), live.get(e.getKey()), written.get(e.getKey()), mark));
+                    }
+                    try {
+                        history.compact(index.keySet());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                synchronized (this) { compacting = false; }
+            }
+        }
+
+        // Makes the renames in `f`'s directory durable. Not every platform lets a directory be
+        // opened for this, in which case the renames are as durable as the OS makes them.
+        private static void syncDirectory(File f) {
+            File dir = f.getAbsoluteFile().getParentFile();
+            try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException e) {
+                // unsupported here
+            }
+        }
+
+        private static boolean survives(Segment seg, Segment captured, long mark) {
+            if (seg == captured) return true;
+            if (!seg.journal || seg.offset < mark) return false;
+            return !(seg instanceof PatchSegment) || survives(((PatchSegment) seg).base, captured, mark);
+        }
+
+        // Maps a segment onto the compacted files: the body captured for the snapshot moves
+        // there, anything newer lives in the carried-over journal tail.
+        private static Segment relocate(Segment seg, Segment captured, Segment written, long mark) {
+            if (seg == captured) {
+                written.crc = captured.crc;
+                return written;
+            }
+            if (seg instanceof PatchSegment) {
+                PatchSegment p = (PatchSegment) seg;
+                return new PatchSegment(relocate(p.base, captured, written, mark), p.offset - mark, p.length, p.bodyLength);
+            }
+            Segment moved = new Segment(true, seg.offset - mark, seg.length);
+            moved.crc = seg.crc;
+            return moved;
+        }
+
+        private Map<String, Segment> writeSnapshot(File target, Map<String, Segment> notes) throws IOException {
+            Map<String, Segment> written = new HashMap<>();
+            long pos = 0;
+            try (FileOutputStream fos = new FileOutputStream(target);
+                 OutputStream out = new BufferedOutputStream(fos, 1 << 16)) {
+                for (Map.Entry<String, Segment> e : notes.entrySet()) {
+                    byte[] head = ("###" + e.getKey()).getBytes(StandardCharsets.UTF_8);
+                    byte[] data = read(e.getValue()).getBytes(StandardCharsets.UTF_8);
+                    out.write(head); out.write(NL);
+                    pos += head.length + NL.length;
+                    written.put(e.getKey(), new Segment(false, pos, data.length));
+                    out.write(data); out.write(NL);
+                    out.write('$'); out.write('$'); out.write('$'); out.write(NL);
+                    pos += data.length + NL.length + 3 + NL.length;
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            return written;
+        }
+
+        private String read(Segment seg) throws IOException {
+            if (seg instanceof BlockSegment) {
+                return new String(inflated(((BlockSegment) seg).block), (int) seg.offset, seg.length, StandardCharsets.UTF_8);
+            }
+            byte[] b = readAt(seg.journal ? journal : snapshot, seg.offset, seg.length);
+            if (b == null) return "";
+            if (seg instanceof PatchSegment) {
+                b = Patch.apply(read(((PatchSegment) seg).base).getBytes(StandardCharsets.UTF_8), b);
+            }
+            return new String(b, StandardCharsets.UTF_8).trim();
+        }
+
+        private byte[] inflated(Block block) throws IOException {
+            byte[] raw = block.data.get();
+            if (raw == null) {
+                byte[] packed = readAt(snapshot, block.offset, block.packed);
+                if (packed == null) throw new IOException("Truncated note block");
+                raw = BlockWriter.inflate(packed, block.raw);
+                block.data = new SoftReference<>(raw);
+            }
+            return raw;
+        }
+
+        private static byte[] readAt(FileChannel ch, long pos, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, pos + buf.position()) < 0) return null;
+            }
+            return buf.array();
+        }
+
+        // Single pass over the snapshot recording where each body starts and ends.
+        // A note runs until a "$$$" line, the next "###" line or end of file.
+        private static final int FIRST_PAGE = 200, PAGE = 5000;
+        private String scanTitle;
+        private long scanBody;
+        private List<String> scanPage;
+
+        private void scan(Consumer<List<String>> pages) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            boolean titleLine = false, first = true;
+            long pos = 0, lineStart = 0;
+            scanTitle = null;
+            scanPage = new ArrayList<>();
+            while (snapshot.read(buf, pos) > 0) {
+                if (pages != null && scanPage.size() >= (first ? FIRST_PAGE : PAGE)) {
+                    pages.accept(scanPage);
+                    scanPage = new ArrayList<>();
+                    first = false;
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    byte b = buf.get();
+                    pos++;
+                    if (b == '\n') {
+                        endLine(line.toByteArray(), lineStart, pos);
+                        lineStart = pos;
+                        line.reset();
+                        titleLine = false;
+                    } else if (titleLine || line.size() < 5) {
+                        // only "###" lines need their full text; "$$$" is told apart within 5 bytes
+                        line.write(b);
+                        if (line.size() == 3) titleLine = isMarker(line.toByteArray(), (byte) '#');
+                    }
+                }
+                buf.clear();
+            }
+            if (pos > lineStart) endLine(line.toByteArray(), lineStart, pos);
+            if (scanTitle != null) scanned(scanTitle, new Segment(false, scanBody, (int) (pos - scanBody)));
+            if (pages != null && !scanPage.isEmpty()) pages.accept(scanPage);
+            scanPage = null;
+        }
+
+        // Reads the directory of a block snapshot; no block is inflated until a note is read.
+        private void scanBlocks(Consumer<List<String>> pages) throws IOException {
+            long size = snapshot.size();
+            byte[] head = readAt(snapshot, 0, 8);
+            byte[] foot = size < 28 ? null : readAt(snapshot, size - 20, 20);
+            if (head == null || foot == null || !isBlockMagic(head, 0) || !isBlockMagic(foot, 16))
+                throw new IOException(snapshotFile + " is not a note block file");
+            int version = ByteBuffer.wrap(head, 4, 4).getInt();
+            if (version != BlockWriter.VERSION) throw new IOException("Unsupported note block version " + version);
+            ByteBuffer f = ByteBuffer.wrap(foot);
+            long dirOffset = f.getLong();
+            int dirPacked = f.getInt(), dirRaw = f.getInt();
+            byte[] packed = readAt(snapshot, dirOffset, dirPacked);
+            if (packed == null) throw new IOException("Truncated note block directory");
+            ByteBuffer dir = ByteBuffer.wrap(BlockWriter.inflate(packed, dirRaw));
+            scanPage = new ArrayList<>();
+            blockRaw = 0;
+            Block block = null;
+            for (int i = dir.getInt(); i > 0; i--) {
+                byte[] t = new byte[dir.getInt()];
+                dir.get(t);
+                long offset = dir.getLong();
+                int blockPacked = dir.getInt(), raw = dir.getInt(), start = dir.getInt(), length = dir.getInt();
+                if (block == null || block.offset != offset) block = new Block(offset, blockPacked, raw);
+                scanned(new String(t, StandardCharsets.UTF_8), new BlockSegment(block, start, length));
+                blockRaw += length;
+                if (pages != null && scanPage.size() >= PAGE) {
+                    pages.accept(scanPage);
+                    scanPage = new ArrayList<>();
+                }
+            }
+            if (pages != null && !scanPage.isEmpty()) pages.accept(scanPage);
+            scanPage = null;
+        }
+
+        private static boolean isBlockMagic(byte[] b, int at) {
+            return Arrays.equals(Arrays.copyOfRange(b, at, at + 4), BlockWriter.MAGIC);
+        }
+
+        private void scanned(String title, Segment seg) {
+            if (index.putIfAbsent(title, seg) == null) scanPage.add(title);
+        }
+
+        private void endLine(byte[] b, long lineStart, long next) {
+            int len = b.length;
+            if (len > 0 && b[len - 1] == '\r') len--;
+            boolean title = isMarker(b, (byte) '#');
+            boolean end = len == 3 && isMarker(b, (byte) '$');
+            if (!title && !end) return;
+            if (scanTitle != null) scanned(scanTitle, new Segment(false, scanBody, (int) (lineStart - scanBody)));
+            scanTitle = title ? new String(b, 3, len - 3, StandardCharsets.UTF_8) : null;
+            scanBody = next;
+        }
+
+        private static boolean isMarker(byte[] b, byte c) {
+            return b.length >= 3 && b[0] == c && b[1] == c && b[2] == c;
+        }
+
+        private void closeChannels() throws IOException {
+            if (snapshot != null) { snapshot.close(); snapshot = null; }
+            if (journal != null) { journal.close(); journal = null; }
+        }
+
+        public void close() throws IOException {
+            ScheduledExecutorService c;
+            synchronized (this) { c = compactor; compactor = null; }
+            if (c != null) {
+                c.shutdown();
+                try {
+                    c.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sync();
+            synchronized (this) {
+                closeChannels();
+                history.close();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return content.toString().trim();
     }
 }